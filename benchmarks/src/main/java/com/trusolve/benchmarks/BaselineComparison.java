@@ -0,0 +1,107 @@
+package com.trusolve.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.trusolve.json.ObjectMappers;
+
+/**
+ * Compares two JMH result files written with {@code -rf json}, typically a committed baseline and
+ * a run of the current code, and prints the change of every benchmark present in both: the
+ * primary score and, when recorded, the allocation per operation ({@code -prof gc}) and the peak
+ * heap ({@code -prof com.trusolve.benchmarks.PeakHeapProfiler}).
+ * <p>
+ * Usage: {@code BaselineComparison baseline.json current.json [threshold]}.  The exit status is 1
+ * when a throughput dropped, or the allocation or peak heap grew, by more than the threshold
+ * (a fraction, 0.10 by default).
+ */
+public final class BaselineComparison
+{
+	private static final String ALLOCATION = "gc.alloc.rate.norm";
+	private static final String PEAK_HEAP = "peak.heap";
+
+	private BaselineComparison()
+	{
+	}
+
+	public static void main( String[] args )
+		throws IOException
+	{
+		if( args.length < 2 )
+		{
+			System.err.println("Usage: BaselineComparison baseline.json current.json [threshold]");
+			System.exit(2);
+		}
+		final double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 0.10;
+		final Map<String,JsonNode> baseline = load(new File(args[0]));
+		final Map<String,JsonNode> current = load(new File(args[1]));
+		boolean regressed = false;
+		System.out.println(String.format("%-90s %14s %14s %8s", "Benchmark", "Baseline", "Current", "Change"));
+		for( Map.Entry<String,JsonNode> e : current.entrySet() )
+		{
+			final JsonNode before = baseline.get(e.getKey());
+			if( before == null )
+			{
+				System.out.println(String.format("%-90s %14s", e.getKey(), "new"));
+				continue;
+			}
+			// higher is better for throughput, lower is better for everything else
+			final boolean higherIsBetter = "thrpt".equals(e.getValue().path("mode").asText());
+			regressed |= print(e.getKey(), before.get("primaryMetric"), e.getValue().get("primaryMetric"), higherIsBetter, threshold);
+			regressed |= print(e.getKey() + ":alloc", before.path("secondaryMetrics").get(ALLOCATION), e.getValue().path("secondaryMetrics").get(ALLOCATION), false, threshold);
+			regressed |= print(e.getKey() + ":" + PEAK_HEAP, before.path("secondaryMetrics").get(PEAK_HEAP), e.getValue().path("secondaryMetrics").get(PEAK_HEAP), false, threshold);
+		}
+		System.exit(regressed ? 1 : 0);
+	}
+
+	/**
+	 * Print the change of one metric.
+	 *
+	 * @return Whether the metric regressed beyond the threshold.
+	 */
+	private static boolean print( final String name, final JsonNode before, final JsonNode after, final boolean higherIsBetter, final double threshold )
+	{
+		if( before == null || after == null )
+		{
+			return false;
+		}
+		final double b = before.get("score").asDouble();
+		final double a = after.get("score").asDouble();
+		final double change = b == 0 ? 0 : ( a - b ) / b;
+		final boolean regressed = higherIsBetter ? change < -threshold : change > threshold;
+		System.out.println(String.format("%-90s %14.3f %14.3f %+7.1f%%%s", name, b, a, change * 100, regressed ? " REGRESSION" : ""));
+		return regressed;
+	}
+
+	/**
+	 * Read a result file into its benchmarks keyed by name and parameters.
+	 */
+	private static Map<String,JsonNode> load( final File file )
+		throws IOException
+	{
+		final Map<String,JsonNode> benchmarks = new LinkedHashMap<String,JsonNode>();
+		final JsonNode results = ObjectMappers.jsonReader().readValue(file);
+		for( JsonNode b : results )
+		{
+			final StringBuilder key = new StringBuilder(b.get("benchmark").asText());
+			// sort the parameters, JMH does not promise an order
+			final Map<String,String> params = new TreeMap<String,String>();
+			for( Iterator<Map.Entry<String,JsonNode>> i = b.path("params").fields() ; i.hasNext() ; )
+			{
+				final Map.Entry<String,JsonNode> p = i.next();
+				params.put(p.getKey(), p.getValue().asText());
+			}
+			for( Map.Entry<String,String> p : params.entrySet() )
+			{
+				key.append(' ').append(p.getKey()).append('=').append(p.getValue());
+			}
+			benchmarks.put(key.toString(), b);
+		}
+		return benchmarks;
+	}
+}
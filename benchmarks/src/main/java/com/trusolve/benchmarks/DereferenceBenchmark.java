@@ -0,0 +1,155 @@
+package com.trusolve.benchmarks;
+
+import java.io.File;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.trusolve.json.DereferenceSession;
+import com.trusolve.json.IncrementalDereferencer;
+import com.trusolve.json.JsonDereferencer;
+
+/**
+ * Throughput of the public dereference entry points over generated specifications of growing
+ * library count, reference fan-out and reference chain depth.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DereferenceBenchmark
+{
+	@Param({ "1", "8" })
+	public int libraries;
+
+	@Param({ "2", "8" })
+	public int fanOut;
+
+	@Param({ "1", "4" })
+	public int depth;
+
+	private File directory;
+	private URL root;
+	private IncrementalDereferencer incremental;
+
+	@Setup(Level.Trial)
+	public void setup()
+		throws Exception
+	{
+		directory = SpecGenerator.temporaryDirectory("dereference");
+		root = new SpecGenerator().libraries(libraries).fanOut(fanOut).depth(depth).writeJson(directory).toURI().toURL();
+		// the parallel walk must produce the output of the serial walk, byte for byte
+		final JsonDereferencer parallel = new JsonDereferencer(root);
+		parallel.setParallelism(4);
+		if( ! JsonDereferencer.dereferenceToString(root).equals(parallel.dereferenceToString()) )
+		{
+			throw new IllegalStateException("The parallel dereference of " + root + " differs from the serial dereference");
+		}
+		incremental = new IncrementalDereferencer();
+		incremental.dereference(root);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		SpecGenerator.delete(directory);
+	}
+
+	@Benchmark
+	public JsonNode dereferenceTree()
+		throws Exception
+	{
+		return new JsonDereferencer(root).dereference();
+	}
+
+	@Benchmark
+	public String dereferenceToString()
+		throws Exception
+	{
+		return JsonDereferencer.dereferenceToString(root);
+	}
+
+	@Benchmark
+	public long dereferenceToStream()
+		throws Exception
+	{
+		final Sinks.CountingOutputStream out = new Sinks.CountingOutputStream();
+		new JsonDereferencer(root).dereferenceTo(out);
+		return out.count;
+	}
+
+	@Benchmark
+	public long dereferenceToWriter()
+		throws Exception
+	{
+		final Sinks.CountingWriter out = new Sinks.CountingWriter();
+		new JsonDereferencer(root).dereferenceTo(out);
+		return out.count;
+	}
+
+	@Benchmark
+	public JsonNode dereferenceParallel()
+		throws Exception
+	{
+		final JsonDereferencer jd = new JsonDereferencer(root);
+		jd.setParallelism(4);
+		return jd.dereference();
+	}
+
+	@Benchmark
+	public JsonNode dereferenceLazy()
+		throws Exception
+	{
+		final JsonDereferencer jd = new JsonDereferencer(root);
+		jd.setLazyDocuments(true);
+		return jd.dereference();
+	}
+
+	@Benchmark
+	public String dereferenceCanonical()
+		throws Exception
+	{
+		final JsonDereferencer jd = new JsonDereferencer(root);
+		jd.setCanonicalOutput(true);
+		jd.dereferenceTo(new Sinks.CountingOutputStream());
+		return jd.getContentHash();
+	}
+
+	/**
+	 * Four dereferences of the same root in one session, sharing the parsed libraries.
+	 */
+	@Benchmark
+	public List<DereferenceSession.Result> session()
+		throws Exception
+	{
+		return new DereferenceSession().dereference(Arrays.asList(root, root, root, root));
+	}
+
+	/**
+	 * A dereference of an unchanged root, answered from the previous output.
+	 */
+	@Benchmark
+	public String incrementalUnchanged()
+		throws Exception
+	{
+		return incremental.dereference(root);
+	}
+}
@@ -0,0 +1,66 @@
+package com.trusolve.benchmarks;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.profile.InternalProfiler;
+import org.openjdk.jmh.results.AggregationPolicy;
+import org.openjdk.jmh.results.IterationResult;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.ScalarResult;
+
+/**
+ * JMH profiler reporting the peak heap usage of every iteration, as the sum of the peak usage of
+ * the heap memory pools (which may peak at different moments, so this is an upper bound).  The
+ * peaks are reset before each iteration.  Enable with
+ * {@code -prof com.trusolve.benchmarks.PeakHeapProfiler}.
+ */
+public class PeakHeapProfiler
+	implements InternalProfiler
+{
+	private final List<MemoryPoolMXBean> heapPools = new ArrayList<MemoryPoolMXBean>();
+
+	public PeakHeapProfiler()
+	{
+		for( MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans() )
+		{
+			if( pool.getType() == MemoryType.HEAP && pool.isValid() )
+			{
+				heapPools.add(pool);
+			}
+		}
+	}
+
+	@Override
+	public String getDescription()
+	{
+		return "Peak heap usage per iteration";
+	}
+
+	@Override
+	public void beforeIteration( BenchmarkParams benchmarkParams, IterationParams iterationParams )
+	{
+		for( MemoryPoolMXBean pool : heapPools )
+		{
+			pool.resetPeakUsage();
+		}
+	}
+
+	@Override
+	public Collection<? extends Result<?>> afterIteration( BenchmarkParams benchmarkParams, IterationParams iterationParams, IterationResult result )
+	{
+		long peak = 0;
+		for( MemoryPoolMXBean pool : heapPools )
+		{
+			peak += pool.getPeakUsage().getUsed();
+		}
+		return Collections.singletonList(new ScalarResult("peak.heap", peak / ( 1024.0 * 1024.0 ), "MB", AggregationPolicy.MAX));
+	}
+}
@@ -0,0 +1,94 @@
+package com.trusolve.benchmarks;
+
+import java.io.File;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.trusolve.json.JsonDereferencer;
+
+/**
+ * Dereference of specifications shaped to stress one part of the walk each:
+ * <ul>
+ * <li>inline - many paths with large inline schemas and a single reference each, so the time goes
+ * to traversing nodes without references</li>
+ * <li>refArray - one large array of references into a few libraries</li>
+ * <li>postfix - many definitions localized from a library and renamed with
+ * $refGlobalIncludedRefPostfix</li>
+ * </ul>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ShapeBenchmark
+{
+	@Param({ "inline", "refArray", "postfix" })
+	public String shape;
+
+	private File directory;
+	private URL root;
+
+	@Setup(Level.Trial)
+	public void setup()
+		throws Exception
+	{
+		final SpecGenerator generator;
+		if( "inline".equals(shape) )
+		{
+			generator = new SpecGenerator().libraries(1).paths(2000).fanOut(1).depth(1).inlineProperties(100);
+		}
+		else if( "refArray".equals(shape) )
+		{
+			generator = new SpecGenerator().libraries(4).definitionsPerLibrary(1000).paths(0).depth(1).arraySize(100000);
+		}
+		else if( "postfix".equals(shape) )
+		{
+			generator = new SpecGenerator().libraries(1).definitionsPerLibrary(5000).paths(5000).fanOut(1).depth(2).includedRefPostfix(true);
+		}
+		else
+		{
+			throw new IllegalArgumentException("Unknown shape " + shape);
+		}
+		directory = SpecGenerator.temporaryDirectory("shape");
+		root = generator.writeJson(directory).toURI().toURL();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		SpecGenerator.delete(directory);
+	}
+
+	@Benchmark
+	public JsonNode dereference()
+		throws Exception
+	{
+		return new JsonDereferencer(root).dereference();
+	}
+
+	@Benchmark
+	public JsonNode dereferenceParallel()
+		throws Exception
+	{
+		final JsonDereferencer jd = new JsonDereferencer(root);
+		jd.setParallelism(4);
+		return jd.dereference();
+	}
+}
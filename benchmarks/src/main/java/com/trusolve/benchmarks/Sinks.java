@@ -0,0 +1,96 @@
+package com.trusolve.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Destinations that discard what is written to them, so benchmarks measure producing the output
+ * rather than storing it.
+ */
+final class Sinks
+{
+	private Sinks()
+	{
+	}
+
+	/**
+	 * Stream counting and discarding the bytes written to it.
+	 */
+	static final class CountingOutputStream
+		extends OutputStream
+	{
+		long count = 0;
+
+		@Override
+		public void write( int b )
+		{
+			count++;
+		}
+
+		@Override
+		public void write( byte[] b, int off, int len )
+		{
+			count += len;
+		}
+	}
+
+	/**
+	 * Writer counting and discarding the characters written to it.
+	 */
+	static final class CountingWriter
+		extends Writer
+	{
+		long count = 0;
+
+		@Override
+		public void write( char[] cbuf, int off, int len )
+		{
+			count += len;
+		}
+
+		@Override
+		public void write( String str, int off, int len )
+		{
+			count += len;
+		}
+
+		@Override
+		public void flush()
+		{
+		}
+
+		@Override
+		public void close()
+		{
+		}
+	}
+
+	/**
+	 * Read a reader to the end, feeding the characters to a black hole.
+	 *
+	 * @return The number of characters read.
+	 */
+	static long drain( final Reader r, final Blackhole bh )
+		throws IOException
+	{
+		final char[] buffer = new char[8192];
+		long count = 0;
+		try
+		{
+			for( int n = r.read(buffer) ; n >= 0 ; n = r.read(buffer) )
+			{
+				bh.consume(buffer);
+				count += n;
+			}
+		}
+		finally
+		{
+			r.close();
+		}
+		return count;
+	}
+}
@@ -0,0 +1,303 @@
+package com.trusolve.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.trusolve.json.ObjectMappers;
+
+/**
+ * Generates synthetic Swagger 2.0 specifications spread over a root document and a number of
+ * library documents.  The shape is controlled by a few knobs:
+ * <ul>
+ * <li>libraries - number of library documents the root references</li>
+ * <li>definitionsPerLibrary - number of definitions in every library</li>
+ * <li>paths - number of paths (each with one GET operation) in the root</li>
+ * <li>fanOut - number of library references of every operation (parameters and responses)</li>
+ * <li>depth - length of the chain of definitions a definition refers to through its properties,
+ * continuing in the next library at the end of a library</li>
+ * <li>arraySize - number of elements of an array of references in the root, zero for none</li>
+ * <li>inlineProperties - number of properties of an inline schema (without references) added to
+ * every operation, zero for none</li>
+ * <li>includedRefPostfix - whether the root sets $refGlobalIncludedRefPostfix, so definitions
+ * localized from the libraries are renamed with the library name</li>
+ * </ul>
+ * References are absolute file URLs so the result does not depend on the working directory.
+ * The same options always produce the same documents.
+ */
+public final class SpecGenerator
+{
+	private static final JsonNodeFactory NODES = JsonNodeFactory.instance;
+
+	private int libraries = 4;
+	private int definitionsPerLibrary = 50;
+	private int paths = 100;
+	private int fanOut = 3;
+	private int depth = 3;
+	private int arraySize = 0;
+	private int inlineProperties = 0;
+	private boolean includedRefPostfix = false;
+
+	public SpecGenerator libraries( int libraries )
+	{
+		this.libraries = libraries;
+		return this;
+	}
+
+	public SpecGenerator definitionsPerLibrary( int definitionsPerLibrary )
+	{
+		this.definitionsPerLibrary = definitionsPerLibrary;
+		return this;
+	}
+
+	public SpecGenerator paths( int paths )
+	{
+		this.paths = paths;
+		return this;
+	}
+
+	public SpecGenerator fanOut( int fanOut )
+	{
+		this.fanOut = fanOut;
+		return this;
+	}
+
+	public SpecGenerator depth( int depth )
+	{
+		this.depth = depth;
+		return this;
+	}
+
+	public SpecGenerator arraySize( int arraySize )
+	{
+		this.arraySize = arraySize;
+		return this;
+	}
+
+	public SpecGenerator inlineProperties( int inlineProperties )
+	{
+		this.inlineProperties = inlineProperties;
+		return this;
+	}
+
+	public SpecGenerator includedRefPostfix( boolean includedRefPostfix )
+	{
+		this.includedRefPostfix = includedRefPostfix;
+		return this;
+	}
+
+	/**
+	 * Write the libraries and the root document as JSON.
+	 *
+	 * @param directory
+	 *          Directory receiving the documents, created when needed.
+	 * @return The root document.
+	 */
+	public File writeJson( final File directory )
+		throws IOException
+	{
+		return write(directory, false);
+	}
+
+	/**
+	 * Write the libraries as JSON and the root document as YAML, as consumed by
+	 * {@link com.trusolve.json.YamlToJson}.
+	 *
+	 * @param directory
+	 *          Directory receiving the documents, created when needed.
+	 * @return The root document.
+	 */
+	public File writeYaml( final File directory )
+		throws IOException
+	{
+		return write(directory, true);
+	}
+
+	/**
+	 * Write the input of {@link com.trusolve.json.ApiDistribution}: the libraries, one API document
+	 * per library (each a root document with its own paths) and a distribution document including
+	 * every path of every API through $refAliases.
+	 *
+	 * @param directory
+	 *          Directory receiving the documents, created when needed.
+	 * @return The distribution document.
+	 */
+	public File writeApiDistribution( final File directory )
+		throws IOException
+	{
+		writeJson(directory);
+		final ObjectNode distribution = NODES.objectNode();
+		distribution.put("swagger", "2.0");
+		distribution.putObject("info").put("title", "distribution").put("version", "1");
+		distribution.putObject("x-api-includeAll");
+		final ObjectNode aliases = distribution.putObject("$refAliases");
+		for( int a = 0 ; a < libraries ; a++ )
+		{
+			final ObjectNode api = root(directory);
+			final ObjectNode prefixed = NODES.objectNode();
+			for( Iterator<Map.Entry<String,JsonNode>> i = api.get("paths").fields() ; i.hasNext() ; )
+			{
+				final Map.Entry<String,JsonNode> e = i.next();
+				prefixed.set("/api" + a + e.getKey(), e.getValue());
+			}
+			api.set("paths", prefixed);
+			final File apiFile = new File(directory, "api" + a + ".json");
+			ObjectMappers.prettyWriter().writeValue(apiFile, api);
+			aliases.put("api" + a, apiFile.toURI().toString());
+		}
+		final File file = new File(directory, "distribution.json");
+		ObjectMappers.prettyWriter().writeValue(file, distribution);
+		return file;
+	}
+
+	private File write( final File directory, final boolean yaml )
+		throws IOException
+	{
+		if( ! directory.isDirectory() && ! directory.mkdirs() )
+		{
+			throw new IOException("Unable to create " + directory);
+		}
+		for( int l = 0 ; l < libraries ; l++ )
+		{
+			ObjectMappers.prettyWriter().writeValue(libraryFile(directory, l), library(directory, l));
+		}
+		final File root = new File(directory, yaml ? "root.yaml" : "root.json");
+		if( yaml )
+		{
+			ObjectMappers.yamlWriter().writeValue(root, root(directory));
+		}
+		else
+		{
+			ObjectMappers.prettyWriter().writeValue(root, root(directory));
+		}
+		return root;
+	}
+
+	/**
+	 * Build the root document without writing it, for benchmarks of code taking a tree or text.
+	 * The libraries must have been written to the directory already.
+	 */
+	public ObjectNode root( final File directory )
+	{
+		final ObjectNode root = NODES.objectNode();
+		root.put("swagger", "2.0");
+		if( includedRefPostfix )
+		{
+			root.put("$refGlobalIncludedRefPostfix", true);
+		}
+		root.putObject("info").put("title", "generated").put("version", "1");
+		final ObjectNode pathsNode = root.putObject("paths");
+		int n = 0;
+		for( int p = 0 ; p < paths ; p++ )
+		{
+			final ObjectNode get = pathsNode.putObject("/resource" + p).putObject("get");
+			get.put("operationId", "get" + p);
+			final ArrayNode parameters = get.putArray("parameters");
+			final ObjectNode responses = get.putObject("responses");
+			if( inlineProperties > 0 )
+			{
+				final ObjectNode properties = parameters.addObject().put("in", "body").put("name", "inline").putObject("schema").put("type", "object").putObject("properties");
+				for( int i = 0 ; i < inlineProperties ; i++ )
+				{
+					properties.putObject("property" + i).put("type", i % 2 == 0 ? "string" : "integer").put("description", "Inline property " + i);
+				}
+			}
+			for( int f = 0 ; f < fanOut ; f++, n++ )
+			{
+				if( f % 2 == 0 )
+				{
+					responses.putObject(Integer.toString(200 + f)).put("description", "response " + f).putObject("schema").put("$ref", ref(directory, n));
+				}
+				else
+				{
+					parameters.addObject().put("in", "body").put("name", "body" + f).putObject("schema").put("$ref", ref(directory, n));
+				}
+			}
+		}
+		if( arraySize > 0 )
+		{
+			final ArrayNode all = root.putObject("x-all").putArray("oneOf");
+			for( int i = 0 ; i < arraySize ; i++ )
+			{
+				all.addObject().put("$ref", ref(directory, i));
+			}
+		}
+		return root;
+	}
+
+	private JsonNode library( final File directory, final int library )
+	{
+		final ObjectNode document = NODES.objectNode();
+		document.put("swagger", "2.0");
+		final ObjectNode definitions = document.putObject("definitions");
+		for( int d = 0 ; d < definitionsPerLibrary ; d++ )
+		{
+			final ObjectNode definition = definitions.putObject("Definition" + d);
+			definition.put("type", "object");
+			definition.put("description", "Definition " + d + " of library " + library);
+			final ObjectNode properties = definition.putObject("properties");
+			properties.putObject("id").put("type", "string").put("format", "uuid");
+			properties.putObject("name").put("type", "string").put("maxLength", 64);
+			properties.putObject("count").put("type", "integer").put("minimum", 0);
+			// the next link of the chain is a local reference, or the first definition of the next library
+			if( depth > 0 && d % depth != depth - 1 )
+			{
+				properties.putObject("next").put("$ref", d + 1 < definitionsPerLibrary ? "#/definitions/Definition" + ( d + 1 ) : libraryUrl(directory, ( library + 1 ) % libraries) + "#/definitions/Definition0");
+			}
+		}
+		return document;
+	}
+
+	private String ref( final File directory, final int n )
+	{
+		return libraryUrl(directory, n % libraries) + "#/definitions/Definition" + ( n / libraries ) % definitionsPerLibrary;
+	}
+
+	private static File libraryFile( final File directory, final int library )
+	{
+		return new File(directory, "library" + library + ".json");
+	}
+
+	private static String libraryUrl( final File directory, final int library )
+	{
+		return libraryFile(directory, library).toURI().toString();
+	}
+
+	/**
+	 * Create an empty temporary directory for a benchmark trial.
+	 */
+	static File temporaryDirectory( final String prefix )
+		throws IOException
+	{
+		return Files.createTempDirectory(prefix).toFile();
+	}
+
+	/**
+	 * Delete a directory created by {@link #temporaryDirectory(String)} and its files.
+	 */
+	static void delete( final File directory )
+	{
+		final File[] files = directory.listFiles();
+		if( files != null )
+		{
+			for( File f : files )
+			{
+				if( f.isDirectory() )
+				{
+					delete(f);
+				}
+				else
+				{
+					f.delete();
+				}
+			}
+		}
+		directory.delete();
+	}
+}
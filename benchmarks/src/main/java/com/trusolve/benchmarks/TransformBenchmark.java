@@ -0,0 +1,166 @@
+package com.trusolve.benchmarks;
+
+import java.io.File;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.tools.ant.filters.BaseParamFilterReader;
+import org.apache.tools.ant.types.Parameter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.trusolve.ant.filters.ApiDistributionFilter;
+import com.trusolve.ant.filters.DereferenceJSONFilter;
+import com.trusolve.ant.filters.JsonToYamlFilter;
+import com.trusolve.ant.filters.RemoveJsonAttributes;
+import com.trusolve.ant.filters.YamlToJsonFilter;
+import com.trusolve.json.ApiDistribution;
+import com.trusolve.json.ObjectMappers;
+import com.trusolve.json.YamlToJson;
+
+/**
+ * Throughput of the format conversions, the API distribution and the Ant filters, alone and chained
+ * the way a build uses them, over the same generated specification written as JSON and as YAML.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransformBenchmark
+{
+	@Param({ "100", "1000" })
+	public int paths;
+
+	private File directory;
+	private String json;
+	private String yaml;
+	private String distribution;
+	private ObjectNode distributionTree;
+
+	@Setup(Level.Trial)
+	public void setup()
+		throws Exception
+	{
+		directory = SpecGenerator.temporaryDirectory("transform");
+		final SpecGenerator generator = new SpecGenerator().paths(paths).inlineProperties(10);
+		json = new String(Files.readAllBytes(generator.writeJson(directory).toPath()), StandardCharsets.UTF_8);
+		yaml = new String(Files.readAllBytes(generator.writeYaml(directory).toPath()), StandardCharsets.UTF_8);
+		distribution = new String(Files.readAllBytes(generator.writeApiDistribution(directory).toPath()), StandardCharsets.UTF_8);
+		distributionTree = (ObjectNode)ObjectMappers.jsonReader().readTree(distribution);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		SpecGenerator.delete(directory);
+	}
+
+	@Benchmark
+	public JsonNode parseJson()
+		throws Exception
+	{
+		return ObjectMappers.jsonReader().readTree(json);
+	}
+
+	@Benchmark
+	public JsonNode yamlToJson()
+		throws Exception
+	{
+		return new YamlToJson().convert(new StringReader(yaml));
+	}
+
+	@Benchmark
+	public String yamlToJsonString()
+		throws Exception
+	{
+		return new YamlToJson().convertToString(new StringReader(yaml));
+	}
+
+	@Benchmark
+	public long apiDistribution()
+		throws Exception
+	{
+		final Sinks.CountingWriter out = new Sinks.CountingWriter();
+		new ApiDistribution(distributionTree.deepCopy()).writeTo(out);
+		return out.count;
+	}
+
+	@Benchmark
+	public long yamlToJsonFilter( final Blackhole bh )
+		throws Exception
+	{
+		return Sinks.drain(withParameters(new YamlToJsonFilter(new StringReader(yaml))), bh);
+	}
+
+	@Benchmark
+	public long jsonToYamlFilter( final Blackhole bh )
+		throws Exception
+	{
+		return Sinks.drain(withParameters(new JsonToYamlFilter(new StringReader(json))), bh);
+	}
+
+	@Benchmark
+	public long dereferenceFilter( final Blackhole bh )
+		throws Exception
+	{
+		return Sinks.drain(withParameters(new DereferenceJSONFilter(new StringReader(json))), bh);
+	}
+
+	@Benchmark
+	public long removeAttributesFilter( final Blackhole bh )
+		throws Exception
+	{
+		final Parameter description = new Parameter();
+		description.setName("attributesToRemove");
+		description.setValue("description");
+		return Sinks.drain(withParameters(new RemoveJsonAttributes(new StringReader(json)), description), bh);
+	}
+
+	@Benchmark
+	public long apiDistributionFilter( final Blackhole bh )
+		throws Exception
+	{
+		return Sinks.drain(withParameters(new ApiDistributionFilter(new StringReader(distribution))), bh);
+	}
+
+	/**
+	 * YAML source to dereferenced YAML output through a filter chain.
+	 */
+	@Benchmark
+	public long pipeline( final Blackhole bh )
+		throws Exception
+	{
+		final Reader yamlToJson = withParameters(new YamlToJsonFilter(new StringReader(yaml)));
+		final Reader dereference = withParameters(new DereferenceJSONFilter(yamlToJson));
+		return Sinks.drain(withParameters(new JsonToYamlFilter(dereference)), bh);
+	}
+
+	/**
+	 * Ant always sets the parameters of a parameterizable filter, possibly to an empty array, and
+	 * the filters rely on it.
+	 */
+	private static <T extends BaseParamFilterReader> T withParameters( final T filter, final Parameter... parameters )
+	{
+		filter.setParameters(parameters);
+		return filter;
+	}
+}
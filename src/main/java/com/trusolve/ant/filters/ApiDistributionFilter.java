@@ -2,10 +2,15 @@ package com.trusolve.ant.filters;
 
 import java.io.IOException;
 import java.io.Reader;
+import java.io.StringReader;
 
 import org.apache.tools.ant.filters.BaseParamFilterReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.trusolve.json.ApiDistribution;
+import com.trusolve.json.JsonDaemon;
+import com.trusolve.json.JsonDaemonClient;
 
 /**
  * This is a filter class that will process include files into a Swagger definition supplied on the
@@ -17,6 +22,8 @@ import com.trusolve.json.ApiDistribution;
  *
  */
 public class ApiDistributionFilter extends BaseParamFilterReader {
+  private static final Logger LOGGER = LoggerFactory.getLogger(ApiDistributionFilter.class);
+
   /**
    * Standard constructor for a filter reader.
    *
@@ -26,6 +33,23 @@ public class ApiDistributionFilter extends BaseParamFilterReader {
    *           If an io problem occurs.
    */
   public ApiDistributionFilter(Reader in) throws IOException {
-    super(new ApiDistribution(in).getReader());
+    super(distribute(in));
+  }
+
+  /**
+   * Process the swagger with the running {@link JsonDaemon} if there is one, in process otherwise.
+   */
+  private static Reader distribute(Reader in) throws IOException {
+    final JsonDaemonClient client = JsonDaemonClient.find();
+    if (client != null) {
+      final String document = JsonDaemonClient.read(in);
+      try {
+        return new StringReader(client.apiDistribution(document));
+      } catch (JsonDaemonClient.UnavailableException e) {
+        LOGGER.info("Distributing in process, the JSON daemon is not available: {}", e.getCause().toString());
+      }
+      in = new StringReader(document);
+    }
+    return new ApiDistribution(in).getReader();
   }
 }
@@ -12,10 +12,15 @@ import org.slf4j.LoggerFactory;
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
 import com.fasterxml.jackson.dataformat.yaml.YAMLGenerator;
 import com.fasterxml.jackson.dataformat.yaml.YAMLParser;
 import com.trusolve.io.DeferredReader;
+import com.trusolve.json.ObjectMappers;
 
 public abstract class BaseObjectMapperParamFilterReader extends BaseParamFilterReader {
   private static final Logger LOGGER = LoggerFactory.getLogger(BaseObjectMapperParamFilterReader.class);
@@ -24,6 +29,8 @@ public abstract class BaseObjectMapperParamFilterReader extends BaseParamFilterR
   protected DeferredReader deferredReader;
   protected JsonFactory jsonFactory = new JsonFactory();
   protected YAMLFactory yamlFactory = new YAMLFactory();
+  private boolean jsonFactoryConfigured = false;
+  private boolean yamlFactoryConfigured = false;
   private boolean initialized = false;
 
   public BaseObjectMapperParamFilterReader(Reader in) throws IOException {
@@ -98,6 +105,7 @@ public abstract class BaseObjectMapperParamFilterReader extends BaseParamFilterR
 
 
   private void initYAMLGeneratorFeature(final String featureName, boolean state){
+    yamlFactoryConfigured = true;
     try{
       yamlFactory.configure(YAMLGenerator.Feature.valueOf(featureName), state);
     } catch ( Exception e ){
@@ -106,6 +114,7 @@ public abstract class BaseObjectMapperParamFilterReader extends BaseParamFilterR
   }
 
   private void initYAMLParserFeature(final String featureName, boolean state){
+    yamlFactoryConfigured = true;
     try{
       yamlFactory.configure(YAMLParser.Feature.valueOf(featureName), state);
     } catch ( Exception e ){
@@ -114,6 +123,7 @@ public abstract class BaseObjectMapperParamFilterReader extends BaseParamFilterR
   }
 
   private void initJsonGeneratorFeature(final String featureName, boolean state){
+    jsonFactoryConfigured = true;
     try{
       jsonFactory.configure(JsonGenerator.Feature.valueOf(featureName), state);
     } catch ( Exception e ){
@@ -122,6 +132,7 @@ public abstract class BaseObjectMapperParamFilterReader extends BaseParamFilterR
   }
 
   private void initJsonParserFeature(final String featureName, boolean state){
+    jsonFactoryConfigured = true;
     try{
       jsonFactory.configure(JsonParser.Feature.valueOf(featureName), state);
     } catch ( Exception e ){
@@ -129,5 +140,35 @@ public abstract class BaseObjectMapperParamFilterReader extends BaseParamFilterR
     }
   }
 
+  /**
+   * Get a reader of JSON trees. This is the shared reader unless JsonGenerator or JsonParser
+   * features were set on this filter, in which case a reader over the configured factory is created.
+   */
+  protected ObjectReader getJsonReader() {
+    if (jsonFactoryConfigured) {
+      return new ObjectMapper(jsonFactory).readerFor(JsonNode.class);
+    }
+    return ObjectMappers.jsonReader();
+  }
+
+  /**
+   * Get a writer of YAML. This is the shared writer unless YAMLGenerator or YAMLParser features
+   * were set on this filter, in which case a writer over the configured factory is created.
+   */
+  protected ObjectWriter getYamlWriter() {
+    if (yamlFactoryConfigured) {
+      return new ObjectMapper(yamlFactory).writer();
+    }
+    return ObjectMappers.yamlWriter();
+  }
+
+  /**
+   * @return Whether no parser or generator features were set on this filter, so the shared readers
+   *         and writers are used.
+   */
+  protected boolean hasDefaultMappers() {
+    return !jsonFactoryConfigured && !yamlFactoryConfigured;
+  }
+
   protected abstract Reader getReader() throws IOException;
 }
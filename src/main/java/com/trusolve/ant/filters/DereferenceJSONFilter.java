@@ -29,22 +29,66 @@
 
 package com.trusolve.ant.filters;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
-import java.net.URISyntaxException;
-import java.util.Map;
-
-import javax.script.ScriptContext;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
 
 import org.apache.tools.ant.filters.BaseParamFilterReader;
 import org.apache.tools.ant.types.Parameter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.trusolve.io.DeferredReader;
+import com.trusolve.io.ProducerReader;
+import com.trusolve.json.DereferenceMetrics;
+import com.trusolve.json.IncrementalDereferencer;
+import com.trusolve.json.JsonDaemon;
+import com.trusolve.json.JsonDaemonClient;
 import com.trusolve.json.JsonDereferencer;
-import com.trusolve.json.YamlToJson;
+import com.trusolve.json.ObjectMappers;
+import com.trusolve.json.ResolutionTrace;
 
 /**
+ * Ant filter that dereferences the JSON document read from the filter chain.  The dereference is
+ * deferred until the first read so that the filter parameters are available:
+ * <ul>
+ * <li>prefetchThreads - number of threads used to load referenced documents ahead of the walk</li>
+ * <li>parallelism - number of threads walking the document, one or less walks it serially</li>
+ * <li>cacheDirectory - directory holding the parsed form of referenced files between builds</li>
+ * <li>incrementalStateDirectory - directory holding the dependency graph and previous outputs; a
+ * document is only dereferenced again when it or one of the files it references changed</li>
+ * <li>incrementalRootId - stable identifier of the document in the incremental state, such as the
+ * path of its source, so that its entry is replaced when it changes; without one the document is
+ * identified by its content and the entries of its old versions expire after
+ * {@link IncrementalDereferencer#DEFAULT_RETENTION}</li>
+ * <li>maxResolutionDepth, maxDocuments, maxNodes - limits on nested reference resolutions, referenced
+ * documents and visited nodes that stop a malformed document early (zero or less disables a limit)</li>
+ * <li>traceFile - file receiving the reference resolution trace of the dereference as JSON, also
+ * when the dereference fails; when an incremental dereference reuses the previous output nothing
+ * is resolved and the file is left as it is</li>
+ * <li>metricsFile - file receiving the metrics of the dereference as JSON: documents loaded with
+ * their size and load time, cache hits and misses, references by kind, merges and the deepest
+ * reference nesting; written like the traceFile</li>
+ * <li>lazyDocuments - "true" to only parse the definitions of referenced files that are used</li>
+ * <li>canonical - "true" to write the output in canonical form (sorted members, normalized numbers)
+ * so that unchanged sources always produce the same bytes</li>
+ * <li>hashFile - file receiving the SHA-256 hash of the output (implies canonical); the file is only
+ * rewritten when the hash changes, so a build can skip publishing unchanged output</li>
+ * <li>daemon - "false" to always dereference in process; by default the document is sent to the
+ * running {@link JsonDaemon} of the user, if any, and dereferenced in process when there is none
+ * (incremental dereferences always run in process)</li>
+ * <li>daemonTimeout - milliseconds to wait for the daemon to answer before dereferencing in process
+ * instead, zero to wait as long as it takes (default {@link JsonDaemonClient#DEFAULT_TIMEOUT})</li>
+ * </ul>
+ *
  * @author Preston Gilchrist
  *
  */
@@ -53,34 +97,354 @@ public class DereferenceJSONFilter
 {
 	@SuppressWarnings("unused")
 	private static final String CLASS_ID = "$Id$";
+	private static final Logger LOGGER = LoggerFactory.getLogger(DereferenceJSONFilter.class);
+
+	private Reader originalReader = null;
+	private DeferredReader deferredReader = null;
+	private boolean initialized = false;
+	private int prefetchThreads = 0;
+	private int parallelism = 0;
+	private File cacheDirectory = null;
+	private File incrementalStateDirectory = null;
+	private String incrementalRootId = null;
+	private File traceFile = null;
+	private File metricsFile = null;
+	private int maxResolutionDepth = JsonDereferencer.DEFAULT_MAX_RESOLUTION_DEPTH;
+	private int maxDocuments = JsonDereferencer.DEFAULT_MAX_DOCUMENTS;
+	private long maxNodes = JsonDereferencer.DEFAULT_MAX_NODES;
+	private boolean lazyDocuments = false;
+	private boolean canonical = false;
+	private File hashFile = null;
+	private boolean daemon = true;
+	private int daemonTimeout = JsonDaemonClient.DEFAULT_TIMEOUT;
 
 	public DereferenceJSONFilter( Reader in )
 		throws IOException
 	{
-		super(documentReader(in));
+		this(new DeferredReader());
+		originalReader = in;
+	}
+
+	private DereferenceJSONFilter( DeferredReader in )
+	{
+		super(in);
+		deferredReader = in;
 	}
 	
 	
 	public int read()
 		throws IOException
 	{
-
+		if( ! initialized )
+		{
+			initialize();
+		}
 		return super.read();
 	}
 	
 	
-	public static Reader documentReader(Reader in)
+	private void initialize()
+		throws IOException
+	{
+		final Parameter[] parameters = this.getParameters();
+		if( parameters != null )
+		{
+			for( Parameter p : parameters )
+			{
+				if( "prefetchThreads".equals(p.getName()) )
+				{
+					this.prefetchThreads = getIntParameter(p);
+				}
+				else if( "parallelism".equals(p.getName()) )
+				{
+					this.parallelism = getIntParameter(p);
+				}
+				else if( "cacheDirectory".equals(p.getName()) )
+				{
+					this.cacheDirectory = new File(p.getValue());
+				}
+				else if( "incrementalStateDirectory".equals(p.getName()) )
+				{
+					this.incrementalStateDirectory = new File(p.getValue());
+				}
+				else if( "incrementalRootId".equals(p.getName()) )
+				{
+					this.incrementalRootId = p.getValue();
+				}
+				else if( "maxResolutionDepth".equals(p.getName()) )
+				{
+					this.maxResolutionDepth = getIntParameter(p);
+				}
+				else if( "maxDocuments".equals(p.getName()) )
+				{
+					this.maxDocuments = getIntParameter(p);
+				}
+				else if( "maxNodes".equals(p.getName()) )
+				{
+					this.maxNodes = getLongParameter(p);
+				}
+				else if( "traceFile".equals(p.getName()) )
+				{
+					this.traceFile = new File(p.getValue());
+				}
+				else if( "metricsFile".equals(p.getName()) )
+				{
+					this.metricsFile = new File(p.getValue());
+				}
+				else if( "lazyDocuments".equals(p.getName()) )
+				{
+					this.lazyDocuments = Boolean.parseBoolean(p.getValue().trim());
+				}
+				else if( "canonical".equals(p.getName()) )
+				{
+					this.canonical = Boolean.parseBoolean(p.getValue().trim());
+				}
+				else if( "hashFile".equals(p.getName()) )
+				{
+					this.hashFile = new File(p.getValue());
+				}
+				else if( "daemon".equals(p.getName()) )
+				{
+					this.daemon = Boolean.parseBoolean(p.getValue().trim());
+				}
+				else if( "daemonTimeout".equals(p.getName()) )
+				{
+					this.daemonTimeout = getIntParameter(p);
+				}
+			}
+		}
+		this.deferredReader.setReader(getReader());
+		initialized = true;
+	}
+
+	private Reader getReader()
 		throws IOException
 	{
 		String doc;
 		try
 		{
-			doc = JsonDereferencer.dereferenceToString(in);
+			if( this.incrementalStateDirectory != null )
+			{
+				final IncrementalDereferencer id = new IncrementalDereferencer(this.incrementalStateDirectory);
+				id.setPrefetchThreads(this.prefetchThreads);
+				id.setParallelism(this.parallelism);
+				id.setCacheDirectory(this.cacheDirectory);
+				id.setLazyDocuments(this.lazyDocuments);
+				id.setMaxResolutionDepth(this.maxResolutionDepth);
+				id.setMaxDocuments(this.maxDocuments);
+				id.setMaxNodes(this.maxNodes);
+				final ResolutionTrace trace = this.traceFile == null ? null : new ResolutionTrace();
+				final DereferenceMetrics metrics = this.metricsFile == null ? null : new DereferenceMetrics();
+				id.setTrace(trace);
+				id.setMetrics(metrics);
+				// the hash is only stable over canonical output
+				id.setCanonicalOutput(this.canonical || this.hashFile != null);
+				try
+				{
+					doc = id.dereference(this.originalReader, null, this.incrementalRootId);
+				}
+				finally
+				{
+					if( ! id.isReused() )
+					{
+						if( trace != null )
+						{
+							ObjectMappers.prettyWriter().writeValue(this.traceFile, trace.toJson());
+						}
+						if( metrics != null )
+						{
+							ObjectMappers.prettyWriter().writeValue(this.metricsFile, metrics.toJson());
+						}
+					}
+				}
+				id.save();
+				if( this.hashFile != null )
+				{
+					writeHash(this.hashFile, id.getContentHash());
+				}
+				return new StringReader(doc);
+			}
+			final JsonDaemonClient client = this.daemon ? JsonDaemonClient.find() : null;
+			if( client != null )
+			{
+				client.setTimeout(this.daemonTimeout);
+				final String document = JsonDaemonClient.read(this.originalReader);
+				try
+				{
+					return dereferenceWithDaemon(client, document);
+				}
+				catch( JsonDaemonClient.UnavailableException e )
+				{
+					LOGGER.info("Dereferencing in process, the JSON daemon is not available: {}", e.getCause().toString());
+				}
+				this.originalReader = new StringReader(document);
+			}
+			final JsonDereferencer jd = new JsonDereferencer(this.originalReader, null);
+			jd.setPrefetchThreads(this.prefetchThreads);
+			jd.setParallelism(this.parallelism);
+			jd.setMaxResolutionDepth(this.maxResolutionDepth);
+			jd.setMaxDocuments(this.maxDocuments);
+			jd.setMaxNodes(this.maxNodes);
+			jd.setCacheDirectory(this.cacheDirectory);
+			jd.setLazyDocuments(this.lazyDocuments);
+			// the hash is computed while the canonical output is written
+			jd.setCanonicalOutput(this.canonical || this.hashFile != null);
+			if( this.traceFile != null )
+			{
+				jd.setTrace(new ResolutionTrace());
+			}
+			if( this.metricsFile != null )
+			{
+				jd.setMetrics(new DereferenceMetrics());
+			}
+			return dereferenceReader(jd, this.traceFile, this.metricsFile, this.hashFile);
+		}
+		catch (Exception e)
+		{
+			throw new IOException("Problem reading JSON document", e);
+		}
+	}
+
+	private Reader dereferenceWithDaemon( final JsonDaemonClient client, final String document )
+		throws IOException
+	{
+		final ObjectNode options = JsonNodeFactory.instance.objectNode();
+		options.put("prefetchThreads", this.prefetchThreads);
+		options.put("parallelism", this.parallelism);
+		options.put("maxResolutionDepth", this.maxResolutionDepth);
+		options.put("maxDocuments", this.maxDocuments);
+		options.put("maxNodes", this.maxNodes);
+		options.put("lazyDocuments", this.lazyDocuments);
+		if( this.cacheDirectory != null )
+		{
+			options.put("cacheDirectory", this.cacheDirectory.getAbsolutePath());
+		}
+		options.put("canonical", this.canonical || this.hashFile != null);
+		options.put("trace", this.traceFile != null);
+		options.put("metrics", this.metricsFile != null);
+		final JsonDaemonClient.Response response;
+		try
+		{
+			response = client.dereference(document, null, new File("src"), options);
+		}
+		catch( JsonDaemonClient.RequestFailedException e )
+		{
+			writeDaemonReports(e.getTrace(), e.getMetrics());
+			throw e;
+		}
+		writeDaemonReports(response.getTrace(), response.getMetrics());
+		if( this.hashFile != null )
+		{
+			writeHash(this.hashFile, response.getHash());
+		}
+		return new StringReader(response.getDocument());
+	}
+
+	private void writeDaemonReports( final JsonNode trace, final JsonNode metrics )
+		throws IOException
+	{
+		if( this.traceFile != null && trace != null )
+		{
+			ObjectMappers.prettyWriter().writeValue(this.traceFile, trace);
+		}
+		if( this.metricsFile != null && metrics != null )
+		{
+			ObjectMappers.prettyWriter().writeValue(this.metricsFile, metrics);
+		}
+	}
+
+	/**
+	 * Get a reader over the dereferenced document.  The document is written on a separate thread
+	 * through a bounded buffer, so the complete text is never held in memory.
+	 */
+	private static Reader dereferenceReader( final JsonDereferencer jd, final File traceFile, final File metricsFile, final File hashFile )
+	{
+		return new ProducerReader(new ProducerReader.Producer()
+		{
+			@Override
+			public void produce( Writer out )
+				throws Exception
+			{
+				try
+				{
+					jd.dereferenceTo(out);
+					if( hashFile != null )
+					{
+						writeHash(hashFile, jd.getContentHash());
+					}
+				}
+				catch (Exception e)
+				{
+					throw new IOException("Problem reading JSON document", e);
+				}
+				finally
+				{
+					if( traceFile != null )
+					{
+						ObjectMappers.prettyWriter().writeValue(traceFile, jd.getTrace().toJson());
+					}
+					if( metricsFile != null )
+					{
+						ObjectMappers.prettyWriter().writeValue(metricsFile, jd.getMetrics().toJson());
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Write the hash of the output, leaving the file untouched when the hash did not change so
+	 * that tools watching its timestamp see no change either.
+	 */
+	private static void writeHash( final File hashFile, final String hash )
+		throws IOException
+	{
+		final byte[] content = hash.getBytes(StandardCharsets.UTF_8);
+		if( hashFile.isFile() && Arrays.equals(content, Files.readAllBytes(hashFile.toPath())) )
+		{
+			return;
+		}
+		Files.write(hashFile.toPath(), content);
+	}
+
+	private static int getIntParameter( final Parameter p )
+		throws IOException
+	{
+		try
+		{
+			return Integer.parseInt(p.getValue().trim());
+		}
+		catch( Exception e )
+		{
+			throw new IOException("Parameter " + p.getName() + " must be an integer, found \"" + p.getValue() + "\"", e);
+		}
+	}
+	
+	
+	private static long getLongParameter( final Parameter p )
+		throws IOException
+	{
+		try
+		{
+			return Long.parseLong(p.getValue().trim());
+		}
+		catch( Exception e )
+		{
+			throw new IOException("Parameter " + p.getName() + " must be an integer, found \"" + p.getValue() + "\"", e);
+		}
+	}
+	
+	
+	public static Reader documentReader(Reader in)
+		throws IOException
+	{
+		try
+		{
+			return dereferenceReader(new JsonDereferencer(in, null), null, null, null);
 		}
 		catch (Exception e)
 		{
 			throw new IOException("Problem reading JSON document", e);
 		}
-		return new StringReader(doc);
 	}
 }
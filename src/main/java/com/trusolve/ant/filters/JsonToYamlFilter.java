@@ -35,12 +35,14 @@ import java.io.StringReader;
 import java.io.StringWriter;
 
 import org.apache.tools.ant.filters.BaseParamFilterReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
-import com.fasterxml.jackson.dataformat.yaml.YAMLGenerator;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.trusolve.json.JsonDaemonClient;
 
 /**
  * @author Preston Gilchrist
@@ -50,6 +52,7 @@ public class JsonToYamlFilter extends BaseObjectMapperParamFilterReader {
 
   @SuppressWarnings("unused")
   private static final String CLASS_ID = "$Id$";
+  private static final Logger LOGGER = LoggerFactory.getLogger(JsonToYamlFilter.class);
 
   public JsonToYamlFilter(Reader in) throws IOException {
     super(in);
@@ -57,14 +60,25 @@ public class JsonToYamlFilter extends BaseObjectMapperParamFilterReader {
 
   @Override
   protected Reader getReader() throws IOException {
-    ObjectMapper jsonIn = new ObjectMapper(this.jsonFactory);
-    JsonNode jn = jsonIn.readTree(this.originalReader);
+    // the daemon converts with the default features only
+    final JsonDaemonClient client = hasDefaultMappers() ? JsonDaemonClient.find() : null;
+    if (client != null) {
+      final String document = JsonDaemonClient.read(this.originalReader);
+      try {
+        return new StringReader(client.jsonToYaml(document));
+      } catch (JsonDaemonClient.UnavailableException e) {
+        LOGGER.info("Converting in process, the JSON daemon is not available: {}", e.getCause().toString());
+      }
+      this.originalReader = new StringReader(document);
+    }
+    JsonNode jn = getJsonReader().readTree(this.originalReader);
 
     StringWriter sw = new StringWriter();
 
-    YAMLGenerator yg = this.yamlFactory.createGenerator(sw);
-    yg.setCodec(new ObjectMapper(this.yamlFactory));
-    yg.writeObject(jn);
+    ObjectWriter yamlOut = getYamlWriter();
+    // the generator is not closed, so no document end is written
+    JsonGenerator yg = yamlOut.getFactory().createGenerator(sw);
+    yamlOut.writeValue(yg, jn);
 
     return new StringReader(sw.toString());
   }
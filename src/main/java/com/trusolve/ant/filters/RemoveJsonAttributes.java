@@ -14,11 +14,9 @@ import org.apache.tools.ant.filters.BaseParamFilterReader;
 import org.apache.tools.ant.types.Parameter;
 
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.ObjectWriter;
-import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.trusolve.io.DeferredReader;
+import com.trusolve.json.ObjectMappers;
 
 public class RemoveJsonAttributes extends BaseParamFilterReader {
   private Reader originalReader = null;
@@ -56,15 +54,11 @@ public class RemoveJsonAttributes extends BaseParamFilterReader {
   }
 
   private Reader getReader() throws IOException {
-    ObjectMapper jsonIn = new ObjectMapper();
-    JsonNode jn = jsonIn.readTree(this.originalReader);
+    JsonNode jn = ObjectMappers.jsonReader().readTree(this.originalReader);
 
     removeAttributes(jn);
 
-    ObjectMapper om = new ObjectMapper();
-    om.enable(SerializationFeature.INDENT_OUTPUT);
-    ObjectWriter ow = om.writer().withDefaultPrettyPrinter();
-    return new StringReader(ow.writeValueAsString(jn));
+    return new StringReader(ObjectMappers.prettyWriter().writeValueAsString(jn));
   }
 
   private void removeAttributes(JsonNode jn) {
@@ -44,12 +44,10 @@ import org.apache.tools.ant.types.Parameter;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.ObjectWriter;
-import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import com.trusolve.json.ObjectMappers;
 import com.trusolve.json.YamlToJson;
 
 /**
@@ -80,14 +78,11 @@ public class SynapseAPISwaggerFilter
 	public static Reader readDocument(Reader in)
 		throws JsonProcessingException, IOException
 	{
-		ObjectMapper jsonIn = new ObjectMapper();
-		JsonNode jn = jsonIn.readTree(in);
+		JsonNode jn = ObjectMappers.jsonReader().readTree(in);
 		
 		fixGetPaths(jn);
 		
-		jsonIn.enable(SerializationFeature.INDENT_OUTPUT);
-		
-		return new StringReader(jsonIn.writeValueAsString(jn));
+		return new StringReader(ObjectMappers.prettyWriter().writeValueAsString(jn));
 	}
 	
 	private static void fixGetPaths(JsonNode root)
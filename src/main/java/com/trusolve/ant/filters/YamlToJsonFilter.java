@@ -38,8 +38,12 @@ import javax.script.ScriptContext;
 
 import org.apache.tools.ant.filters.BaseParamFilterReader;
 import org.apache.tools.ant.types.Parameter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.trusolve.json.JsonDaemon;
+import com.trusolve.json.JsonDaemonClient;
 import com.trusolve.json.YamlToJson;
 
 /**
@@ -52,6 +56,7 @@ public class YamlToJsonFilter
 	
 	@SuppressWarnings("unused")
 	private static final String CLASS_ID = "$Id$";
+	private static final Logger LOGGER = LoggerFactory.getLogger(YamlToJsonFilter.class);
 
 	public YamlToJsonFilter( Reader in )
 		throws IOException
@@ -67,9 +72,26 @@ public class YamlToJsonFilter
 	}
 	
 	
+	/**
+	 * Convert the document with the running {@link JsonDaemon} if there is one, in process otherwise.
+	 */
 	public static Reader readDocument(Reader in)
 		throws JsonProcessingException, IOException
 	{
+		final JsonDaemonClient client = JsonDaemonClient.find();
+		if( client != null )
+		{
+			final String document = JsonDaemonClient.read(in);
+			try
+			{
+				return new StringReader(client.yamlToJson(document));
+			}
+			catch( JsonDaemonClient.UnavailableException e )
+			{
+				LOGGER.info("Converting in process, the JSON daemon is not available: {}", e.getCause().toString());
+			}
+			in = new StringReader(document);
+		}
 		YamlToJson yj = new YamlToJson();
 		String doc = yj.convertToString(in);
 		return new StringReader(doc);
@@ -0,0 +1,243 @@
+package com.trusolve.io;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reader over text that is written by a {@link Producer} running on its own thread.  The text
+ * is handed over in fixed size chunks through a bounded queue, so at most a few chunks of it are
+ * held in memory at any time no matter how large the whole document is.  The producer is started
+ * on the first read; an exception thrown by it is reported by the reader once the text written
+ * before the failure has been consumed.
+ */
+public class ProducerReader
+	extends Reader
+{
+	public static final int DEFAULT_CHUNK_SIZE = 8192;
+	public static final int DEFAULT_CHUNK_COUNT = 16;
+
+	private static final char[] END = new char[0];
+	private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+	/**
+	 * Supplies the text read through a {@link ProducerReader}.
+	 */
+	public interface Producer
+	{
+		/**
+		 * Write the complete text.  The writer must not be closed by the producer.
+		 */
+		void produce( Writer out )
+			throws Exception;
+	}
+
+	private final Producer producer;
+	private final int chunkSize;
+	private final BlockingQueue<char[]> chunks;
+	private Thread thread = null;
+	private volatile Throwable failure = null;
+	private char[] current = null;
+	private int position = 0;
+	private boolean finished = false;
+
+	public ProducerReader( final Producer producer )
+	{
+		this(producer, DEFAULT_CHUNK_SIZE, DEFAULT_CHUNK_COUNT);
+	}
+
+	/**
+	 * @param producer
+	 *          The source of the text.
+	 * @param chunkSize
+	 *          Number of characters in each chunk passed to the reader.
+	 * @param chunkCount
+	 *          Number of chunks that may be waiting to be read before the producer blocks.
+	 */
+	public ProducerReader( final Producer producer, final int chunkSize, final int chunkCount )
+	{
+		this.producer = producer;
+		this.chunkSize = chunkSize;
+		this.chunks = new ArrayBlockingQueue<char[]>(chunkCount);
+	}
+
+	@Override
+	public int read( char[] cbuf, int off, int len )
+		throws IOException
+	{
+		if( len == 0 )
+		{
+			return 0;
+		}
+		if( ! nextChunk() )
+		{
+			return -1;
+		}
+		final int n = Math.min(len, current.length - position);
+		System.arraycopy(current, position, cbuf, off, n);
+		position += n;
+		return n;
+	}
+
+	@Override
+	public int read()
+		throws IOException
+	{
+		if( ! nextChunk() )
+		{
+			return -1;
+		}
+		return current[position++];
+	}
+
+	@Override
+	public void close()
+		throws IOException
+	{
+		finished = true;
+		if( thread != null )
+		{
+			thread.interrupt();
+		}
+		chunks.clear();
+	}
+
+	private boolean nextChunk()
+		throws IOException
+	{
+		if( finished )
+		{
+			return false;
+		}
+		start();
+		while( current == null || position >= current.length )
+		{
+			try
+			{
+				current = chunks.take();
+			}
+			catch( InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting for the producer");
+			}
+			position = 0;
+			if( current == END )
+			{
+				finished = true;
+				current = null;
+				if( failure != null )
+				{
+					throw new IOException("Unable to produce the document", failure);
+				}
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void start()
+	{
+		if( thread != null )
+		{
+			return;
+		}
+		thread = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				final ChunkWriter w = new ChunkWriter();
+				try
+				{
+					producer.produce(w);
+					w.flush();
+				}
+				catch( Throwable t )
+				{
+					failure = t;
+				}
+				finally
+				{
+					try
+					{
+						chunks.put(END);
+					}
+					catch( InterruptedException e )
+					{
+						// the reader was closed, nobody is waiting for the end marker
+					}
+				}
+			}
+		}, "producer-reader-" + THREAD_COUNT.incrementAndGet());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Collects the producer output into chunks and queues them for the reader.
+	 */
+	private class ChunkWriter
+		extends Writer
+	{
+		private char[] buffer = new char[chunkSize];
+		private int count = 0;
+
+		@Override
+		public void write( char[] cbuf, int off, int len )
+			throws IOException
+		{
+			while( len > 0 )
+			{
+				final int n = Math.min(len, buffer.length - count);
+				System.arraycopy(cbuf, off, buffer, count, n);
+				count += n;
+				off += n;
+				len -= n;
+				if( count == buffer.length )
+				{
+					put(buffer);
+					buffer = new char[chunkSize];
+					count = 0;
+				}
+			}
+		}
+
+		@Override
+		public void flush()
+			throws IOException
+		{
+			if( count > 0 )
+			{
+				final char[] chunk = new char[count];
+				System.arraycopy(buffer, 0, chunk, 0, count);
+				put(chunk);
+				count = 0;
+			}
+		}
+
+		@Override
+		public void close()
+			throws IOException
+		{
+			flush();
+		}
+
+		private void put( final char[] chunk )
+			throws IOException
+		{
+			try
+			{
+				chunks.put(chunk);
+			}
+			catch( InterruptedException e )
+			{
+				throw new InterruptedIOException("Reader closed before the document was read");
+			}
+		}
+	}
+}
@@ -6,22 +6,23 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
+import java.io.Writer;
 import java.net.URI;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.ObjectWriter;
-import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
-import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
 
 import org.apache.commons.lang.StringUtils;
 
+import com.trusolve.io.ProducerReader;
+
 /**
  * Class to process a swagger file, reading the include aliases, processing those files to include
  * resource endpoints that have been designated as being included on this API.
@@ -67,9 +68,9 @@ public class ApiDistribution {
       FileReader fr = new FileReader(args[0]);
       ObjectMapper mapper;
       if (args[0].endsWith(".yaml")) {
-        mapper = new ObjectMapper(new YAMLFactory());
+        mapper = ObjectMappers.yaml();
       } else {
-        mapper = new ObjectMapper();
+        mapper = ObjectMappers.json();
       }
       ObjectNode jn = (ObjectNode) mapper.readTree(fr);
       ApiDistribution ad = new ApiDistribution(jn);
@@ -94,9 +95,8 @@ public class ApiDistribution {
    *          Reader supplying the swagger definition.
    */
   public ApiDistribution(Reader in) {
-    ObjectMapper jsonIn = new ObjectMapper();
     try {
-      rootDocument = (ObjectNode) jsonIn.readTree(in);
+      rootDocument = (ObjectNode) ObjectMappers.json().readTree(in);
 
       processApi();
     } catch (Exception e) {
@@ -129,18 +129,30 @@ public class ApiDistribution {
     if (rootDocument == null) {
       return new StringReader("");
     }
-    ObjectMapper om = new ObjectMapper();
-
-    om.enable(SerializationFeature.INDENT_OUTPUT);
-    ObjectWriter ow = om.writer().withDefaultPrettyPrinter();
+    return new ProducerReader(new ProducerReader.Producer() {
+      @Override
+      public void produce(Writer out) throws Exception {
+        writeTo(out);
+      }
+    });
+  }
 
-    String document;
-    try {
-      document = ow.writeValueAsString(rootDocument);
-    } catch (Exception e) {
-      throw new RuntimeException("Could not process document.", e);
+  /**
+   * Write the resulting swagger file after processing. The writer is flushed but not closed.
+   *
+   * @param out
+   *          Writer that receives the resulting swagger file.
+   * @throws IOException
+   *           If the document could not be written.
+   */
+  public void writeTo(Writer out) throws IOException {
+    if (rootDocument == null) {
+      return;
     }
-    return new StringReader(document);
+    JsonGenerator g = ObjectMappers.json().getFactory().createGenerator(out);
+    g.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    ObjectMappers.prettyWriter().writeValue(g, rootDocument);
+    g.close();
   }
 
   private void processApi() throws JsonProcessingException, IOException {
@@ -168,10 +180,9 @@ public class ApiDistribution {
   }
 
   private void processIncludeApi(String apiRefAlias, String apiDefinitionFilePath) {
-    ObjectMapper om = new ObjectMapper();
     ObjectNode currentDocument;
     try {
-      currentDocument = (ObjectNode) om.readTree(new File(new URI(apiDefinitionFilePath)));
+      currentDocument = (ObjectNode) ObjectMappers.json().readTree(new File(new URI(apiDefinitionFilePath)));
     } catch (Exception e) {
       throw new RuntimeException("Unable to parse Swagger file", e);
     }
@@ -0,0 +1,242 @@
+package com.trusolve.json;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import org.apache.commons.codec.binary.Hex;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.util.DefaultIndenter;
+import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Writes JSON in a canonical form, so that equal documents always produce the same bytes no matter
+ * in which order their members were built, and computes the SHA-256 hash of those bytes while they
+ * are written.  Build tools can compare the hash with that of the previous build to find out
+ * whether the output really changed.
+ * <p>
+ * The canonical form is the usual indented output, always with "\n" line ends, with:
+ * <ul>
+ * <li>the members of every object sorted by name (by UTF-16 code units, as
+ * {@link String#compareTo(String)})</li>
+ * <li>numbers written in their shortest form regardless of how they were written in the source:
+ * no trailing zeros in fractions, no fraction on whole numbers, plain notation between 1e-7 and
+ * 1e21 and a lower case exponent outside of that range ("1.0", "1e0" and "1" are all "1")</li>
+ * </ul>
+ */
+public final class CanonicalJsonWriter
+{
+	private static final String HASH_ALGORITHM = "SHA-256";
+	private static final BigDecimal PLAIN_UPPER_LIMIT = BigDecimal.TEN.pow(21);
+	private static final BigDecimal PLAIN_LOWER_LIMIT = BigDecimal.ONE.movePointLeft(7);
+
+	private CanonicalJsonWriter()
+	{
+	}
+
+	/**
+	 * Write a node canonically as UTF-8.  The stream is flushed but not closed.
+	 *
+	 * @return The SHA-256 hash of the written bytes as hexadecimal.
+	 */
+	public static String write( final JsonNode node, final OutputStream out )
+		throws IOException
+	{
+		final MessageDigest digest = newDigest();
+		final JsonGenerator g = ObjectMappers.json().getFactory().createGenerator(new DigestOutputStream(out, digest), JsonEncoding.UTF8);
+		write(g, node);
+		return Hex.encodeHexString(digest.digest());
+	}
+
+	/**
+	 * Write a node canonically.  The hash is computed over the UTF-8 encoding of the text, so it is
+	 * the same as when the node is written to a stream.  The writer is flushed but not closed.
+	 *
+	 * @return The SHA-256 hash of the UTF-8 encoded text as hexadecimal.
+	 */
+	public static String write( final JsonNode node, final Writer out )
+		throws IOException
+	{
+		final HashingWriter hw = new HashingWriter(out, newDigest());
+		write(ObjectMappers.json().getFactory().createGenerator(hw), node);
+		return hw.getHash();
+	}
+
+	/**
+	 * Write a node canonically to a string.
+	 */
+	public static String writeToString( final JsonNode node )
+		throws IOException
+	{
+		final StringWriter sw = new StringWriter();
+		write(node, sw);
+		return sw.toString();
+	}
+
+	private static void write( final JsonGenerator g, final JsonNode node )
+		throws IOException
+	{
+		g.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+		// the default indenter uses the line separator of the platform, which would change the hash
+		g.setPrettyPrinter(new DefaultPrettyPrinter().withObjectIndenter(new DefaultIndenter("  ", "\n")));
+		writeNode(g, node);
+		g.close();
+	}
+
+	private static void writeNode( final JsonGenerator g, final JsonNode node )
+		throws IOException
+	{
+		switch( node.getNodeType() )
+		{
+			case OBJECT:
+				final String[] names = new String[node.size()];
+				int n = 0;
+				for( Iterator<String> i = node.fieldNames() ; i.hasNext() ; )
+				{
+					names[n++] = i.next();
+				}
+				Arrays.sort(names);
+				g.writeStartObject();
+				for( String name : names )
+				{
+					g.writeFieldName(name);
+					writeNode(g, node.get(name));
+				}
+				g.writeEndObject();
+				break;
+			case ARRAY:
+				g.writeStartArray();
+				for( JsonNode element : node )
+				{
+					writeNode(g, element);
+				}
+				g.writeEndArray();
+				break;
+			case NUMBER:
+				writeNumber(g, node);
+				break;
+			default:
+				// strings, booleans, nulls and binary values have only one form already
+				ObjectMappers.json().writeTree(g, node);
+		}
+	}
+
+	private static void writeNumber( final JsonGenerator g, final JsonNode node )
+		throws IOException
+	{
+		if( node.isInt() || node.isLong() || node.isShort() )
+		{
+			g.writeNumber(node.longValue());
+			return;
+		}
+		if( ( node.isDouble() || node.isFloat() ) && ( Double.isNaN(node.doubleValue()) || Double.isInfinite(node.doubleValue()) ) )
+		{
+			g.writeNumber(node.doubleValue());
+			return;
+		}
+		g.writeNumber(canonicalNumber(node.decimalValue()));
+	}
+
+	/**
+	 * Get the canonical text of a number.
+	 */
+	static String canonicalNumber( final BigDecimal value )
+	{
+		if( value.signum() == 0 )
+		{
+			return "0";
+		}
+		final BigDecimal stripped = value.stripTrailingZeros();
+		final BigDecimal magnitude = stripped.abs();
+		if( magnitude.compareTo(PLAIN_UPPER_LIMIT) < 0 && magnitude.compareTo(PLAIN_LOWER_LIMIT) >= 0 )
+		{
+			return stripped.toPlainString();
+		}
+		return stripped.toString().replace("E", "e");
+	}
+
+	private static MessageDigest newDigest()
+	{
+		try
+		{
+			return MessageDigest.getInstance(HASH_ALGORITHM);
+		}
+		catch( NoSuchAlgorithmException e )
+		{
+			// every Java platform has to provide SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Writer that also feeds the UTF-8 encoding of everything written through it to a digest.
+	 */
+	private static final class HashingWriter
+		extends FilterWriter
+	{
+		private final MessageDigest digest;
+		private final Writer encoder;
+
+		HashingWriter( final Writer out, final MessageDigest digest )
+		{
+			super(out);
+			this.digest = digest;
+			this.encoder = new OutputStreamWriter(new DigestOutputStream(new OutputStream()
+			{
+				@Override
+				public void write( int b )
+				{
+				}
+
+				@Override
+				public void write( byte[] b, int off, int len )
+				{
+				}
+			}, digest), StandardCharsets.UTF_8);
+		}
+
+		@Override
+		public void write( int c )
+			throws IOException
+		{
+			out.write(c);
+			encoder.write(c);
+		}
+
+		@Override
+		public void write( char[] cbuf, int off, int len )
+			throws IOException
+		{
+			out.write(cbuf, off, len);
+			encoder.write(cbuf, off, len);
+		}
+
+		@Override
+		public void write( String str, int off, int len )
+			throws IOException
+		{
+			out.write(str, off, len);
+			encoder.write(str, off, len);
+		}
+
+		String getHash()
+			throws IOException
+		{
+			encoder.flush();
+			return Hex.encodeHexString(digest.digest());
+		}
+	}
+}
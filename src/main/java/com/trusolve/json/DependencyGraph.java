@@ -0,0 +1,387 @@
+package com.trusolve.json;
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Records which documents (and which fragments of them) every dereferenced root pulled in.  Roots
+ * are identified by a string chosen by the caller, usually the normalized URL of the root or a
+ * hash of its content.  A reverse index gives the roots affected by a change to a document.
+ * <p>
+ * A root can also carry a fingerprint of whatever else its output depends on, such as the output
+ * options; the root is only current while the caller still presents the same fingerprint.  The
+ * time every root was last recorded or {@link #touch(String) used} is kept too, so that roots
+ * nobody asks for any more can be dropped.
+ */
+public class DependencyGraph
+{
+	private final Map<String,Map<String,Dependency>> roots = new LinkedHashMap<String,Map<String,Dependency>>();
+	private final Map<String,String> fingerprints = new HashMap<String,String>();
+	private final Map<String,Long> lastUsed = new HashMap<String,Long>();
+	private final Map<String,Set<String>> dependents = new HashMap<String,Set<String>>();
+
+	/**
+	 * A document referenced by a root, with the state of the document when it was loaded.
+	 */
+	public static class Dependency
+	{
+		private final URL url;
+		private final long length;
+		private final long lastModified;
+		private final Set<String> fragments = new TreeSet<String>();
+
+		Dependency( final URL url, final long length, final long lastModified )
+		{
+			this.url = url;
+			this.length = length;
+			this.lastModified = lastModified;
+		}
+
+		/**
+		 * Create a dependency on a document, recording the current size and modification time when
+		 * the document is a local file.
+		 */
+		static Dependency forDocument( URL url )
+		{
+			if( url.getRef() != null )
+			{
+				try
+				{
+					url = new URL(url.getProtocol(), url.getHost(), url.getPort(), url.getFile());
+				}
+				catch( MalformedURLException e )
+				{
+					// keep the original location, the fragment does not affect the lookups
+				}
+			}
+			final File f = getFile(url);
+			if( f == null )
+			{
+				return new Dependency(url, -1, -1);
+			}
+			return new Dependency(url, f.length(), f.lastModified());
+		}
+
+		/**
+		 * Create a dependency on the same document in the same state, without fragments.
+		 */
+		Dependency withoutFragments()
+		{
+			return new Dependency(url, length, lastModified);
+		}
+
+		public URL getUrl()
+		{
+			return url;
+		}
+
+		public Set<String> getFragments()
+		{
+			return Collections.unmodifiableSet(fragments);
+		}
+
+		void addFragment( final String fragment )
+		{
+			fragments.add(fragment == null ? "" : fragment);
+		}
+
+		/**
+		 * Check whether the document is unchanged since it was recorded.  Documents that are not
+		 * local files are considered unchanged; they are expected to be versioned by their URL.
+		 */
+		public boolean isCurrent()
+		{
+			final File f = getFile(url);
+			if( f == null )
+			{
+				return true;
+			}
+			return f.isFile() && f.length() == length && f.lastModified() == lastModified;
+		}
+
+		static File getFile( final URL url )
+		{
+			if( ! "file".equalsIgnoreCase(url.getProtocol()) )
+			{
+				return null;
+			}
+			try
+			{
+				return new File(url.toURI().getPath());
+			}
+			catch( Exception e )
+			{
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Replace the dependencies recorded for a root.
+	 *
+	 * @param root
+	 *          Identifier of the root.
+	 * @param documents
+	 *          Every document the root referenced, directly or transitively.
+	 */
+	public synchronized void setDependencies( final String root, final Collection<Dependency> documents )
+	{
+		setDependencies(root, documents, null);
+	}
+
+	/**
+	 * Replace the dependencies recorded for a root together with its fingerprint.
+	 *
+	 * @param root
+	 *          Identifier of the root.
+	 * @param documents
+	 *          Every document the root referenced, directly or transitively.
+	 * @param fingerprint
+	 *          What else the output of the root depends on, or null.
+	 */
+	public synchronized void setDependencies( final String root, final Collection<Dependency> documents, final String fingerprint )
+	{
+		removeRoot(root);
+		if( fingerprint != null )
+		{
+			fingerprints.put(root, fingerprint);
+		}
+		final Map<String,Dependency> m = new LinkedHashMap<String,Dependency>();
+		for( Dependency d : documents )
+		{
+			final String key = DocumentCache.key(d.getUrl());
+			m.put(key, d);
+			Set<String> r = dependents.get(key);
+			if( r == null )
+			{
+				r = new HashSet<String>();
+				dependents.put(key, r);
+			}
+			r.add(root);
+		}
+		roots.put(root, m);
+		lastUsed.put(root, System.currentTimeMillis());
+	}
+
+	/**
+	 * Record that the output of a root was used.
+	 */
+	public synchronized void touch( final String root )
+	{
+		if( roots.containsKey(root) )
+		{
+			lastUsed.put(root, System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * @return The time, in milliseconds since the epoch, a root was last recorded or used, or -1 if
+	 *         the root is unknown.
+	 */
+	public synchronized long getLastUsed( final String root )
+	{
+		final Long time = lastUsed.get(root);
+		return time == null ? -1 : time.longValue();
+	}
+
+	/**
+	 * Replace what is recorded for a root with what another graph records for it, removing the root
+	 * if the other graph does not know it.
+	 */
+	synchronized void copyRoot( final DependencyGraph from, final String root )
+	{
+		final Collection<Dependency> documents = from.getDependencies(root);
+		if( documents == null )
+		{
+			removeRoot(root);
+			return;
+		}
+		setDependencies(root, documents, from.getFingerprint(root));
+		lastUsed.put(root, from.getLastUsed(root));
+	}
+
+	/**
+	 * Get the documents recorded for a root.
+	 *
+	 * @return The dependencies or null if the root is unknown.
+	 */
+	public synchronized Collection<Dependency> getDependencies( final String root )
+	{
+		final Map<String,Dependency> m = roots.get(root);
+		if( m == null )
+		{
+			return null;
+		}
+		return new ArrayList<Dependency>(m.values());
+	}
+
+	/**
+	 * @return The fingerprint recorded for a root, or null.
+	 */
+	public synchronized String getFingerprint( final String root )
+	{
+		return fingerprints.get(root);
+	}
+
+	/**
+	 * Check whether a root is known and none of its documents changed since it was recorded.
+	 */
+	public synchronized boolean isCurrent( final String root )
+	{
+		return isCurrent(root, null);
+	}
+
+	/**
+	 * Check whether a root is known, was recorded with the given fingerprint and none of its
+	 * documents changed since.
+	 *
+	 * @param fingerprint
+	 *          The fingerprint the current output must have been produced with, or null.
+	 */
+	public synchronized boolean isCurrent( final String root, final String fingerprint )
+	{
+		final Map<String,Dependency> m = roots.get(root);
+		if( m == null )
+		{
+			return false;
+		}
+		final String recorded = fingerprints.get(root);
+		if( fingerprint == null ? recorded != null : ! fingerprint.equals(recorded) )
+		{
+			return false;
+		}
+		for( Dependency d : m.values() )
+		{
+			if( ! d.isCurrent() )
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public synchronized Set<String> getRoots()
+	{
+		return new HashSet<String>(roots.keySet());
+	}
+
+	/**
+	 * Get the roots that referenced a document.
+	 *
+	 * @param document
+	 *          Location of the document.
+	 * @return The identifiers of the affected roots, empty if no root references the document.
+	 */
+	public synchronized Set<String> getDependentRoots( final URL document )
+	{
+		final Set<String> r = dependents.get(DocumentCache.key(document));
+		if( r == null )
+		{
+			return new HashSet<String>();
+		}
+		return new HashSet<String>(r);
+	}
+
+	public synchronized void removeRoot( final String root )
+	{
+		final Map<String,Dependency> m = roots.remove(root);
+		fingerprints.remove(root);
+		lastUsed.remove(root);
+		if( m == null )
+		{
+			return;
+		}
+		for( String key : m.keySet() )
+		{
+			final Set<String> r = dependents.get(key);
+			if( r != null )
+			{
+				r.remove(root);
+				if( r.isEmpty() )
+				{
+					dependents.remove(key);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write the graph as a JSON object so it can be stored between builds.  Every root is an
+	 * object with its fingerprint, if any, the time it was last used and its documents.
+	 */
+	public synchronized ObjectNode toJson()
+	{
+		final ObjectNode json = JsonNodeFactory.instance.objectNode();
+		for( Map.Entry<String,Map<String,Dependency>> root : roots.entrySet() )
+		{
+			final ObjectNode entry = json.putObject(root.getKey());
+			final String fingerprint = fingerprints.get(root.getKey());
+			if( fingerprint != null )
+			{
+				entry.put("fingerprint", fingerprint);
+			}
+			entry.put("lastUsed", getLastUsed(root.getKey()));
+			final ObjectNode documents = entry.putObject("documents");
+			for( Dependency d : root.getValue().values() )
+			{
+				final ObjectNode document = documents.putObject(d.getUrl().toExternalForm());
+				document.put("length", d.length);
+				document.put("lastModified", d.lastModified);
+				final ArrayNode fragments = document.putArray("fragments");
+				for( String f : d.fragments )
+				{
+					fragments.add(f);
+				}
+			}
+		}
+		return json;
+	}
+
+	/**
+	 * Read a graph written by {@link #toJson()}.
+	 */
+	public static DependencyGraph fromJson( final JsonNode json )
+		throws MalformedURLException
+	{
+		final DependencyGraph graph = new DependencyGraph();
+		for( Iterator<Map.Entry<String,JsonNode>> i = json.fields() ; i.hasNext() ; )
+		{
+			final Map.Entry<String,JsonNode> root = i.next();
+			final JsonNode entry = root.getValue();
+			final List<Dependency> documents = new ArrayList<Dependency>();
+			for( Iterator<Map.Entry<String,JsonNode>> j = entry.path("documents").fields() ; j.hasNext() ; )
+			{
+				final Map.Entry<String,JsonNode> e = j.next();
+				final Dependency d = new Dependency(new URL(e.getKey()), e.getValue().path("length").asLong(-1), e.getValue().path("lastModified").asLong(-1));
+				for( JsonNode f : e.getValue().path("fragments") )
+				{
+					d.addFragment(f.asText());
+				}
+				documents.add(d);
+			}
+			graph.setDependencies(root.getKey(), documents, entry.path("fingerprint").asText(null));
+			if( entry.has("lastUsed") )
+			{
+				graph.lastUsed.put(root.getKey(), entry.get("lastUsed").asLong());
+			}
+		}
+		return graph;
+	}
+}
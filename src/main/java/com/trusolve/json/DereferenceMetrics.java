@@ -0,0 +1,314 @@
+package com.trusolve.json;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Counters showing where the time of a {@link JsonDereferencer} goes: the documents it loaded, the
+ * hits and misses of its caches, the references it resolved by kind, its merges and how deeply
+ * references were nested.  The counters are safe to update from the threads of a parallel walk.
+ * A dereferencer without metrics skips all of this, so only enable them when they are read.
+ */
+public class DereferenceMetrics
+{
+	/**
+	 * The kinds of resolved references.
+	 */
+	public enum ReferenceKind
+	{
+		/** A reference to the document containing it ("#/..."). */
+		LOCAL,
+		/** A reference through a $refAliases entry ("@alias#/..."). */
+		ALIAS,
+		/** A reference to another document. */
+		REMOTE,
+		/** A reference replaced with a local reference to a copy of its target in the root document. */
+		LOCALIZED
+	}
+
+	/**
+	 * Where a loaded document came from.
+	 */
+	public enum DocumentSource
+	{
+		/** Read and parsed from its location. */
+		PARSED,
+		/** Read with only the parts in use parsed, see {@link JsonDereferencer#setLazyDocuments(boolean)}. */
+		LAZY,
+		/** Taken from the persistent cache, see {@link JsonDereferencer#setCacheDirectory(java.io.File)}. */
+		PERSISTENT_CACHE,
+		/** Copied from the documents shared by a {@link DereferenceSession}. */
+		SESSION
+	}
+
+	/**
+	 * One loaded document.
+	 */
+	public static final class DocumentLoad
+	{
+		private final URL location;
+		private final DocumentSource source;
+		private final long bytes;
+		private final long nanos;
+
+		DocumentLoad( final URL location, final DocumentSource source, final long bytes, final long nanos )
+		{
+			this.location = location;
+			this.source = source;
+			this.bytes = bytes;
+			this.nanos = nanos;
+		}
+
+		public URL getLocation()
+		{
+			return location;
+		}
+
+		public DocumentSource getSource()
+		{
+			return source;
+		}
+
+		/**
+		 * @return The number of bytes read from the location of the document, 0 if it was taken from a
+		 *         cache and -1 if the number is not known.
+		 */
+		public long getBytes()
+		{
+			return bytes;
+		}
+
+		/**
+		 * @return The time taken to read and parse (or copy) the document.
+		 */
+		public long getNanos()
+		{
+			return nanos;
+		}
+	}
+
+	private final List<DocumentLoad> documents = new ArrayList<DocumentLoad>();
+	private final AtomicLong documentCacheHits = new AtomicLong();
+	private final AtomicLong documentCacheMisses = new AtomicLong();
+	private final AtomicLong fragmentCacheHits = new AtomicLong();
+	private final AtomicLong fragmentCacheMisses = new AtomicLong();
+	private final AtomicLong persistentCacheHits = new AtomicLong();
+	private final AtomicLong persistentCacheMisses = new AtomicLong();
+	private final AtomicLongArray references = new AtomicLongArray(ReferenceKind.values().length);
+	private final AtomicLong deepMerges = new AtomicLong();
+	private final AtomicLong shallowMerges = new AtomicLong();
+	private final AtomicLong mergeNanos = new AtomicLong();
+	private final AtomicInteger maxResolutionDepth = new AtomicInteger();
+	private final AtomicLong elapsedNanos = new AtomicLong();
+
+	synchronized void documentLoaded( final URL location, final DocumentSource source, final long bytes, final long nanos )
+	{
+		documents.add(new DocumentLoad(location, source, bytes, nanos));
+	}
+
+	void documentCache( final boolean hit )
+	{
+		( hit ? documentCacheHits : documentCacheMisses ).incrementAndGet();
+	}
+
+	void fragmentCache( final boolean hit )
+	{
+		( hit ? fragmentCacheHits : fragmentCacheMisses ).incrementAndGet();
+	}
+
+	void persistentCache( final boolean hit )
+	{
+		( hit ? persistentCacheHits : persistentCacheMisses ).incrementAndGet();
+	}
+
+	void referenceResolved( final ReferenceKind kind )
+	{
+		references.incrementAndGet(kind.ordinal());
+	}
+
+	void merged( final boolean deep, final long nanos )
+	{
+		( deep ? deepMerges : shallowMerges ).incrementAndGet();
+		mergeNanos.addAndGet(nanos);
+	}
+
+	void resolutionDepth( final int depth )
+	{
+		for( int max = maxResolutionDepth.get() ; depth > max ; max = maxResolutionDepth.get() )
+		{
+			if( maxResolutionDepth.compareAndSet(max, depth) )
+			{
+				return;
+			}
+		}
+	}
+
+	void dereferenced( final long nanos )
+	{
+		elapsedNanos.addAndGet(nanos);
+	}
+
+	/**
+	 * @return The loaded documents in the order they finished loading.
+	 */
+	public synchronized List<DocumentLoad> getDocuments()
+	{
+		return new ArrayList<DocumentLoad>(documents);
+	}
+
+	/**
+	 * @return Number of references to documents that were already loaded.
+	 */
+	public long getDocumentCacheHits()
+	{
+		return documentCacheHits.get();
+	}
+
+	/**
+	 * @return Number of references that caused a document to be loaded.
+	 */
+	public long getDocumentCacheMisses()
+	{
+		return documentCacheMisses.get();
+	}
+
+	/**
+	 * @return Number of fragments of external documents taken from the resolved fragment cache.
+	 */
+	public long getFragmentCacheHits()
+	{
+		return fragmentCacheHits.get();
+	}
+
+	/**
+	 * @return Number of fragments of external documents that had to be dereferenced.
+	 */
+	public long getFragmentCacheMisses()
+	{
+		return fragmentCacheMisses.get();
+	}
+
+	public long getPersistentCacheHits()
+	{
+		return persistentCacheHits.get();
+	}
+
+	public long getPersistentCacheMisses()
+	{
+		return persistentCacheMisses.get();
+	}
+
+	public long getReferences( final ReferenceKind kind )
+	{
+		return references.get(kind.ordinal());
+	}
+
+	public long getDeepMerges()
+	{
+		return deepMerges.get();
+	}
+
+	public long getShallowMerges()
+	{
+		return shallowMerges.get();
+	}
+
+	/**
+	 * @return The time spent merging, summed over the threads of a parallel walk.
+	 */
+	public long getMergeNanos()
+	{
+		return mergeNanos.get();
+	}
+
+	/**
+	 * @return The deepest nesting of reference resolutions, one for a reference that did not lead
+	 *         to further references.
+	 */
+	public int getMaxResolutionDepth()
+	{
+		return maxResolutionDepth.get();
+	}
+
+	/**
+	 * @return The time spent dereferencing, summed over the dereferences the metrics were set on.
+	 */
+	public long getElapsedNanos()
+	{
+		return elapsedNanos.get();
+	}
+
+	public synchronized void clear()
+	{
+		documents.clear();
+		documentCacheHits.set(0);
+		documentCacheMisses.set(0);
+		fragmentCacheHits.set(0);
+		fragmentCacheMisses.set(0);
+		persistentCacheHits.set(0);
+		persistentCacheMisses.set(0);
+		for( int i = 0 ; i < references.length() ; i++ )
+		{
+			references.set(i, 0);
+		}
+		deepMerges.set(0);
+		shallowMerges.set(0);
+		mergeNanos.set(0);
+		maxResolutionDepth.set(0);
+		elapsedNanos.set(0);
+	}
+
+	/**
+	 * Write the metrics as a JSON object.  Times are given in microseconds.
+	 */
+	public ObjectNode toJson()
+	{
+		final ObjectNode json = JsonNodeFactory.instance.objectNode();
+		json.put("elapsedMicros", getElapsedNanos() / 1000L);
+		json.put("maxResolutionDepth", getMaxResolutionDepth());
+		final ObjectNode refs = json.putObject("references");
+		for( ReferenceKind kind : ReferenceKind.values() )
+		{
+			refs.put(kind.name().toLowerCase(Locale.ROOT), getReferences(kind));
+		}
+		final ObjectNode merges = json.putObject("merges");
+		merges.put("deep", getDeepMerges());
+		merges.put("shallow", getShallowMerges());
+		merges.put("micros", getMergeNanos() / 1000L);
+		putCache(json, "documentCache", getDocumentCacheHits(), getDocumentCacheMisses());
+		putCache(json, "fragmentCache", getFragmentCacheHits(), getFragmentCacheMisses());
+		putCache(json, "persistentCache", getPersistentCacheHits(), getPersistentCacheMisses());
+		long bytes = 0;
+		long nanos = 0;
+		final ArrayNode a = json.putArray("documents");
+		for( DocumentLoad d : getDocuments() )
+		{
+			final ObjectNode o = a.addObject();
+			o.put("location", d.location.toExternalForm());
+			o.put("source", d.source.name());
+			o.put("bytes", d.bytes);
+			o.put("micros", d.nanos / 1000L);
+			bytes += Math.max(0, d.bytes);
+			nanos += d.nanos;
+		}
+		json.put("documentBytes", bytes);
+		json.put("documentMicros", nanos / 1000L);
+		return json;
+	}
+
+	private static void putCache( final ObjectNode json, final String name, final long hits, final long misses )
+	{
+		final ObjectNode o = json.putObject(name);
+		o.put("hits", hits);
+		o.put("misses", misses);
+	}
+}
@@ -0,0 +1,404 @@
+package com.trusolve.json;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Dereferences many root documents while parsing every referenced document only once.  The
+ * session keeps the parsed documents in a cache that is never modified; each root is dereferenced
+ * against its own deep copies of them, since the dereference rewrites the documents it pulls
+ * fragments from.  Roots can be dereferenced concurrently, and the result of every root is handed
+ * to a {@link ResultHandler} or written to a {@link Writer} together with the time it took.
+ * <p>
+ * The documents are read once per session, so a session should not outlive changes to them
+ * unless the changed documents are passed to {@link #invalidate(Collection)}.
+ */
+public class DereferenceSession
+{
+	private static final Logger LOGGER = LoggerFactory.getLogger(DereferenceSession.class);
+	private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+	private final DocumentCache documents = new DocumentCache();
+	private int concurrency = 1;
+	private int prefetchThreads = 0;
+	private int parallelism = 0;
+
+	/**
+	 * Receives the result of each root.  Handlers are called one at a time from the thread that
+	 * started the batch, in the order the roots finish.
+	 */
+	public interface ResultHandler
+	{
+		/**
+		 * @throws IOException
+		 *           To abort the batch; roots that have not started are skipped.
+		 */
+		void handle( Result result )
+			throws IOException;
+	}
+
+	/**
+	 * Supplies the writer each dereferenced root is written to.
+	 */
+	public interface OutputFactory
+	{
+		/**
+		 * Open the destination of a root.  The writer is closed once the document is written.
+		 */
+		Writer open( URL root )
+			throws IOException;
+	}
+
+	/**
+	 * The outcome of dereferencing one root.
+	 */
+	public static class Result
+	{
+		private final int index;
+		private final URL root;
+		private final JsonNode document;
+		private final Collection<DependencyGraph.Dependency> referencedDocuments;
+		private final Exception failure;
+		private final long elapsedNanos;
+
+		Result( final int index, final URL root, final JsonNode document, final Collection<DependencyGraph.Dependency> referencedDocuments, final Exception failure, final long elapsedNanos )
+		{
+			this.index = index;
+			this.root = root;
+			this.document = document;
+			this.referencedDocuments = referencedDocuments;
+			this.failure = failure;
+			this.elapsedNanos = elapsedNanos;
+		}
+
+		public URL getRoot()
+		{
+			return root;
+		}
+
+		/**
+		 * @return The dereferenced document, or null if the root failed or was written to a writer.
+		 */
+		public JsonNode getDocument()
+		{
+			return document;
+		}
+
+		/**
+		 * @return The documents the root referenced, empty if the root failed.
+		 */
+		public Collection<DependencyGraph.Dependency> getReferencedDocuments()
+		{
+			return referencedDocuments;
+		}
+
+		/**
+		 * @return The exception the root failed with, or null if it succeeded.
+		 */
+		public Exception getFailure()
+		{
+			return failure;
+		}
+
+		public boolean isSuccessful()
+		{
+			return failure == null;
+		}
+
+		/**
+		 * @return Time taken to dereference (and write) the root, in milliseconds.
+		 */
+		public long getElapsedMillis()
+		{
+			return elapsedNanos / 1000000L;
+		}
+
+		public long getElapsedNanos()
+		{
+			return elapsedNanos;
+		}
+	}
+
+	/**
+	 * Set the number of roots dereferenced at the same time.  One (the default) dereferences the
+	 * roots one after the other on the calling thread.
+	 */
+	public void setConcurrency( int concurrency )
+	{
+		this.concurrency = concurrency;
+	}
+
+	/**
+	 * @see JsonDereferencer#setPrefetchThreads(int)
+	 */
+	public void setPrefetchThreads( int prefetchThreads )
+	{
+		this.prefetchThreads = prefetchThreads;
+	}
+
+	/**
+	 * @see JsonDereferencer#setParallelism(int)
+	 */
+	public void setParallelism( int parallelism )
+	{
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * @see JsonDereferencer#setCacheDirectory(File)
+	 */
+	public void setCacheDirectory( File cacheDirectory )
+	{
+		this.documents.setPersistentCache(cacheDirectory == null ? null : new PersistentDocumentCache(cacheDirectory));
+	}
+
+	/**
+	 * @see JsonDereferencer#setDocumentLoader(DocumentLoader)
+	 */
+	public void setDocumentLoader( DocumentLoader loader )
+	{
+		this.documents.setLoader(loader);
+	}
+
+	/**
+	 * Drop changed documents, so the roots dereferenced afterwards read them again.
+	 *
+	 * @param changedDocuments
+	 *          Locations of the changed documents, roots or referenced documents.
+	 * @return The number of documents that had been read by the session.
+	 */
+	public int invalidate( final Collection<URL> changedDocuments )
+	{
+		int removed = 0;
+		for( URL u : changedDocuments )
+		{
+			if( this.documents.remove(u) )
+			{
+				removed++;
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Dereference the roots and return their results in the order of the roots.  A root that fails
+	 * does not stop the others; its result carries the failure.
+	 *
+	 * @param roots
+	 *          Locations of the root documents.
+	 * @return The result of each root.
+	 */
+	public List<Result> dereference( final Collection<URL> roots )
+		throws IOException
+	{
+		final List<Result> results = new ArrayList<Result>(roots.size());
+		dereference(roots, new ResultHandler()
+		{
+			@Override
+			public void handle( Result result )
+			{
+				results.add(result);
+			}
+		});
+		return sortByRoot(results);
+	}
+
+	/**
+	 * Dereference the roots and pass each result to a handler as soon as the root is done.
+	 *
+	 * @param roots
+	 *          Locations of the root documents.
+	 * @param handler
+	 *          Receives the result of every root, including failed ones.
+	 */
+	public void dereference( final Collection<URL> roots, final ResultHandler handler )
+		throws IOException
+	{
+		process(roots, null, handler);
+	}
+
+	/**
+	 * Dereference the roots and write each one to the writer supplied for it.  Every root is
+	 * attempted; if any failed, the failure of the first one in root order is thrown afterwards.
+	 *
+	 * @param roots
+	 *          Locations of the root documents.
+	 * @param outputs
+	 *          Supplies the writer of each root.
+	 * @return The result of each root, in the order of the roots, without the documents.
+	 */
+	public List<Result> dereferenceTo( final Collection<URL> roots, final OutputFactory outputs )
+		throws IOException
+	{
+		final List<Result> results = new ArrayList<Result>(roots.size());
+		process(roots, outputs, new ResultHandler()
+		{
+			@Override
+			public void handle( Result result )
+			{
+				results.add(result);
+			}
+		});
+		for( Result r : sortByRoot(results) )
+		{
+			if( ! r.isSuccessful() )
+			{
+				throw new IOException("Unable to dereference " + r.getRoot(), r.getFailure());
+			}
+		}
+		return results;
+	}
+
+	private static List<Result> sortByRoot( final List<Result> results )
+	{
+		Collections.sort(results, new Comparator<Result>()
+		{
+			@Override
+			public int compare( Result a, Result b )
+			{
+				return a.index < b.index ? -1 : ( a.index == b.index ? 0 : 1 );
+			}
+		});
+		return results;
+	}
+
+	private void process( final Collection<URL> roots, final OutputFactory outputs, final ResultHandler handler )
+		throws IOException
+	{
+		final List<RootTask> tasks = new ArrayList<RootTask>(roots.size());
+		for( URL root : roots )
+		{
+			tasks.add(new RootTask(tasks.size(), root, outputs));
+		}
+		if( this.concurrency <= 1 || tasks.size() <= 1 )
+		{
+			for( RootTask t : tasks )
+			{
+				handler.handle(t.call());
+			}
+			return;
+		}
+
+		final ExecutorService executor = Executors.newFixedThreadPool(Math.min(this.concurrency, tasks.size()), new ThreadFactory()
+		{
+			@Override
+			public Thread newThread( Runnable r )
+			{
+				final Thread t = new Thread(r, "json-session-" + THREAD_COUNT.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		try
+		{
+			final CompletionService<Result> completionService = new ExecutorCompletionService<Result>(executor);
+			for( RootTask t : tasks )
+			{
+				completionService.submit(t);
+			}
+			for( int i = 0 ; i < tasks.size() ; i++ )
+			{
+				handler.handle(completionService.take().get());
+			}
+		}
+		catch( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while dereferencing", e);
+		}
+		catch( ExecutionException e )
+		{
+			// RootTask reports failures in its result, only errors end up here
+			throw new IOException("Unable to dereference", e.getCause());
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Dereferences one root against copies of the shared documents.
+	 */
+	private class RootTask
+		implements Callable<Result>
+	{
+		private final int index;
+		private final URL root;
+		private final OutputFactory outputs;
+
+		RootTask( final int index, final URL root, final OutputFactory outputs )
+		{
+			this.index = index;
+			this.root = root;
+			this.outputs = outputs;
+		}
+
+		@Override
+		public Result call()
+		{
+			final long start = System.nanoTime();
+			try
+			{
+				final JsonDereferencer jd = new JsonDereferencer(documents.load(root).deepCopy(), root);
+				jd.setSharedDocuments(documents);
+				jd.setPrefetchThreads(prefetchThreads);
+				jd.setParallelism(parallelism);
+				JsonNode result = jd.dereference();
+				if( outputs != null )
+				{
+					write(result);
+					result = null;
+				}
+				final long elapsed = System.nanoTime() - start;
+				LOGGER.debug("Dereferenced {} in {} ms", root, elapsed / 1000000L);
+				return new Result(index, root, result, jd.getReferencedDocuments(), null, elapsed);
+			}
+			catch( Exception e )
+			{
+				final long elapsed = System.nanoTime() - start;
+				LOGGER.debug("Dereference of {} failed after {} ms", root, elapsed / 1000000L, e);
+				final Collection<DependencyGraph.Dependency> referenced = Collections.emptyList();
+				return new Result(index, root, null, referenced, e, elapsed);
+			}
+		}
+
+		private void write( final JsonNode result )
+			throws IOException
+		{
+			final Writer w = outputs.open(root);
+			try
+			{
+				final JsonGenerator g = ObjectMappers.json().getFactory().createGenerator(w);
+				g.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+				ObjectMappers.prettyWriter().writeValue(g, result);
+				g.close();
+			}
+			finally
+			{
+				w.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,492 @@
+package com.trusolve.json;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the dereferenced outputs of a set of roots up to date while their sources are edited.
+ * The watcher dereferences every root once, then watches the directories of the roots and of the
+ * local files they reference.  When files change it waits until they have been quiet for the
+ * debounce interval, drops only the changed documents from its {@link DereferenceSession}, looks
+ * up the roots depending on them in its {@link DependencyGraph} and dereferences just those roots
+ * again.  Every other document stays parsed, so a cycle usually takes milliseconds.
+ * <p>
+ * An output is only rewritten when its content changed.  A root that fails, for instance because
+ * a file was saved half edited, keeps its previous output and is retried on the next change of any
+ * of its documents.  Every cycle is reported to a {@link CycleListener} with its timings.
+ * <p>
+ * Run it with {@code java com.trusolve.json.DereferenceWatcher root output [root output ...]}.
+ */
+public class DereferenceWatcher
+	implements Closeable
+{
+	private static final Logger LOGGER = LoggerFactory.getLogger(DereferenceWatcher.class);
+
+	private final WatchService watchService;
+	private final DereferenceSession session = new DereferenceSession();
+	private final DependencyGraph graph = new DependencyGraph();
+	private final Map<String,Root> roots = new LinkedHashMap<String,Root>();
+	private final Set<Path> watchedDirectories = new HashSet<Path>();
+	private long debounce = 100;
+	private int cycleCount = 0;
+	private CycleListener listener = new CycleListener()
+	{
+		@Override
+		public void cycleCompleted( Cycle cycle )
+		{
+			LOGGER.info("{}", cycle);
+		}
+	};
+
+	/**
+	 * Receives the outcome of every cycle, on the thread running the watcher.
+	 */
+	public interface CycleListener
+	{
+		void cycleCompleted( Cycle cycle );
+	}
+
+	/**
+	 * The outcome of one cycle: the changes that started it and what was done about them.
+	 */
+	public static class Cycle
+	{
+		private final int number;
+		private final Set<URL> changedDocuments;
+		private final List<DereferenceSession.Result> results;
+		private final Set<URL> writtenRoots;
+		private final long elapsedNanos;
+
+		Cycle( final int number, final Set<URL> changedDocuments, final List<DereferenceSession.Result> results, final Set<URL> writtenRoots, final long elapsedNanos )
+		{
+			this.number = number;
+			this.changedDocuments = changedDocuments;
+			this.results = results;
+			this.writtenRoots = writtenRoots;
+			this.elapsedNanos = elapsedNanos;
+		}
+
+		/**
+		 * @return The number of the cycle, the first one dereferencing every root is 1.
+		 */
+		public int getNumber()
+		{
+			return number;
+		}
+
+		/**
+		 * @return The changed documents the cycle reacted to, empty for the first cycle.
+		 */
+		public Set<URL> getChangedDocuments()
+		{
+			return Collections.unmodifiableSet(changedDocuments);
+		}
+
+		/**
+		 * @return The result of every root dereferenced in the cycle, without the documents.
+		 */
+		public List<DereferenceSession.Result> getResults()
+		{
+			return Collections.unmodifiableList(results);
+		}
+
+		/**
+		 * @return The roots whose outputs were rewritten, roots with unchanged outputs are left out.
+		 */
+		public Set<URL> getWrittenRoots()
+		{
+			return Collections.unmodifiableSet(writtenRoots);
+		}
+
+		/**
+		 * @return Time taken from the end of the debounce interval to the last output written.
+		 */
+		public long getElapsedNanos()
+		{
+			return elapsedNanos;
+		}
+
+		public long getElapsedMillis()
+		{
+			return elapsedNanos / 1000000L;
+		}
+
+		@Override
+		public String toString()
+		{
+			int failed = 0;
+			final StringBuilder sb = new StringBuilder();
+			for( DereferenceSession.Result r : results )
+			{
+				sb.append(sb.length() == 0 ? " (" : ", ");
+				sb.append(new File(r.getRoot().getPath()).getName()).append(' ');
+				sb.append(String.format("%.1f ms", r.getElapsedNanos() / 1e6));
+				if( ! r.isSuccessful() )
+				{
+					sb.append(" failed");
+					failed++;
+				}
+			}
+			if( sb.length() > 0 )
+			{
+				sb.append(')');
+			}
+			return String.format("Cycle %d: %d changed, %d dereferenced, %d written, %d failed in %.1f ms%s", number, changedDocuments.size(), results.size(), writtenRoots.size(), failed, elapsedNanos / 1e6, sb);
+		}
+	}
+
+	private static final class Root
+	{
+		private final URL url;
+		private final File output;
+		private String outputHash = null;
+
+		Root( final URL url, final File output )
+		{
+			this.url = url;
+			this.output = output;
+		}
+	}
+
+	public static void main( String[] args )
+	{
+		if( args.length < 2 || args.length % 2 != 0 )
+		{
+			System.err.println("Usage: DereferenceWatcher root output [root output ...]");
+			System.exit(2);
+		}
+		try
+		{
+			final DereferenceWatcher watcher = new DereferenceWatcher();
+			for( int i = 0 ; i < args.length ; i += 2 )
+			{
+				watcher.addRoot(new File(args[i]), new File(args[i + 1]));
+			}
+			watcher.setCycleListener(new CycleListener()
+			{
+				@Override
+				public void cycleCompleted( Cycle cycle )
+				{
+					System.out.println(cycle);
+					for( DereferenceSession.Result r : cycle.getResults() )
+					{
+						if( ! r.isSuccessful() )
+						{
+							System.out.println("  " + r.getRoot() + ": " + r.getFailure());
+						}
+					}
+				}
+			});
+			watcher.run();
+		}
+		catch( Exception e )
+		{
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	public DereferenceWatcher()
+		throws IOException
+	{
+		this.watchService = FileSystems.getDefault().newWatchService();
+	}
+
+	/**
+	 * Add a root to keep dereferenced.  Roots must be added before {@link #run()}.
+	 *
+	 * @param root
+	 *          The root document.
+	 * @param output
+	 *          The file the dereferenced root is written to.
+	 */
+	public void addRoot( final File root, final File output )
+		throws IOException
+	{
+		final URL url = root.getAbsoluteFile().toPath().normalize().toUri().toURL();
+		this.roots.put(DocumentCache.key(url), new Root(url, output.getAbsoluteFile()));
+	}
+
+	/**
+	 * Set how long the watched files must be quiet before a cycle starts, so that a save touching
+	 * several files, or writing one file in several steps, causes a single cycle.
+	 *
+	 * @param debounce
+	 *          The interval in milliseconds, 100 by default.
+	 */
+	public void setDebounce( long debounce )
+	{
+		this.debounce = debounce;
+	}
+
+	public void setCycleListener( CycleListener listener )
+	{
+		this.listener = listener;
+	}
+
+	/**
+	 * @see DereferenceSession#setConcurrency(int)
+	 */
+	public void setConcurrency( int concurrency )
+	{
+		this.session.setConcurrency(concurrency);
+	}
+
+	/**
+	 * @see JsonDereferencer#setPrefetchThreads(int)
+	 */
+	public void setPrefetchThreads( int prefetchThreads )
+	{
+		this.session.setPrefetchThreads(prefetchThreads);
+	}
+
+	/**
+	 * @see JsonDereferencer#setParallelism(int)
+	 */
+	public void setParallelism( int parallelism )
+	{
+		this.session.setParallelism(parallelism);
+	}
+
+	public DependencyGraph getDependencyGraph()
+	{
+		return this.graph;
+	}
+
+	/**
+	 * Dereference every root, then keep the outputs up to date until {@link #close()} is called or
+	 * the thread is interrupted.
+	 */
+	public void run()
+		throws IOException, InterruptedException
+	{
+		cycle(new LinkedHashSet<URL>(), this.roots.keySet());
+		try
+		{
+			while( true )
+			{
+				final Set<URL> changed = new LinkedHashSet<URL>();
+				boolean overflow = collect(this.watchService.take(), changed);
+				// wait until the files are quiet for the whole interval
+				for( WatchKey key = this.watchService.poll(this.debounce, TimeUnit.MILLISECONDS) ; key != null ; key = this.watchService.poll(this.debounce, TimeUnit.MILLISECONDS) )
+				{
+					overflow |= collect(key, changed);
+				}
+				if( overflow )
+				{
+					// events were lost, so any document may have changed
+					changed.addAll(getAllDocuments());
+					cycle(changed, this.roots.keySet());
+					continue;
+				}
+				final Set<String> affected = new LinkedHashSet<String>();
+				for( URL u : changed )
+				{
+					affected.addAll(this.graph.getDependentRoots(u));
+				}
+				if( ! affected.isEmpty() )
+				{
+					cycle(changed, affected);
+				}
+			}
+		}
+		catch( ClosedWatchServiceException e )
+		{
+			LOGGER.debug("Watcher closed");
+		}
+	}
+
+	@Override
+	public void close()
+		throws IOException
+	{
+		this.watchService.close();
+	}
+
+	/**
+	 * Add the files named by the events of a key to the changed documents.
+	 *
+	 * @return Whether events were lost.
+	 */
+	private boolean collect( final WatchKey key, final Set<URL> changed )
+		throws IOException
+	{
+		boolean overflow = false;
+		final Path directory = (Path)key.watchable();
+		for( WatchEvent<?> event : key.pollEvents() )
+		{
+			if( event.kind() == StandardWatchEventKinds.OVERFLOW )
+			{
+				overflow = true;
+				continue;
+			}
+			final URL u = directory.resolve((Path)event.context()).toUri().toURL();
+			// only documents some root depends on, editors create all sorts of temporary files
+			if( ! this.graph.getDependentRoots(u).isEmpty() )
+			{
+				changed.add(u);
+			}
+		}
+		if( ! key.reset() )
+		{
+			// the directory is gone, watch it again if it comes back
+			this.watchedDirectories.remove(directory);
+		}
+		return overflow;
+	}
+
+	private Set<URL> getAllDocuments()
+	{
+		final Set<URL> documents = new LinkedHashSet<URL>();
+		for( String rootKey : this.graph.getRoots() )
+		{
+			for( DependencyGraph.Dependency d : this.graph.getDependencies(rootKey) )
+			{
+				documents.add(d.getUrl());
+			}
+		}
+		return documents;
+	}
+
+	private void cycle( final Set<URL> changed, final Collection<String> rootKeys )
+		throws IOException
+	{
+		final long start = System.nanoTime();
+		this.session.invalidate(changed);
+		final List<URL> urls = new ArrayList<URL>(rootKeys.size());
+		final Map<URL,Root> byUrl = new HashMap<URL,Root>();
+		for( String rootKey : rootKeys )
+		{
+			final Root r = this.roots.get(rootKey);
+			urls.add(r.url);
+			byUrl.put(r.url, r);
+		}
+		final List<DereferenceSession.Result> results = new ArrayList<DereferenceSession.Result>(urls.size());
+		final Set<URL> written = new LinkedHashSet<URL>();
+		this.session.dereference(urls, new DereferenceSession.ResultHandler()
+		{
+			@Override
+			public void handle( DereferenceSession.Result result )
+				throws IOException
+			{
+				final Root root = byUrl.get(result.getRoot());
+				if( result.isSuccessful() )
+				{
+					final List<DependencyGraph.Dependency> documents = new ArrayList<DependencyGraph.Dependency>();
+					documents.add(DependencyGraph.Dependency.forDocument(root.url));
+					documents.addAll(result.getReferencedDocuments());
+					graph.setDependencies(DocumentCache.key(root.url), documents);
+					if( write(root, result) )
+					{
+						written.add(root.url);
+					}
+				}
+				else if( graph.getDependencies(DocumentCache.key(root.url)) == null )
+				{
+					// nothing is known about the documents of a root that never succeeded, wait for the root itself
+					graph.setDependencies(DocumentCache.key(root.url), Collections.singletonList(DependencyGraph.Dependency.forDocument(root.url)));
+				}
+				// the document is written, the cycle only keeps the timings
+				results.add(new DereferenceSession.Result(results.size(), result.getRoot(), null, result.getReferencedDocuments(), result.getFailure(), result.getElapsedNanos()));
+			}
+		});
+		watchDirectories();
+		this.listener.cycleCompleted(new Cycle(++this.cycleCount, changed, results, written, System.nanoTime() - start));
+	}
+
+	/**
+	 * Write the output of a root if it changed.
+	 *
+	 * @return Whether the output was written.
+	 */
+	private static boolean write( final Root root, final DereferenceSession.Result result )
+		throws IOException
+	{
+		final byte[] content = ObjectMappers.prettyWriter().writeValueAsBytes(result.getDocument());
+		final String hash = DigestUtils.sha256Hex(content);
+		if( hash.equals(root.outputHash) && root.output.isFile() )
+		{
+			return false;
+		}
+		writeAtomically(root.output, content);
+		root.outputHash = hash;
+		return true;
+	}
+
+	private static void writeAtomically( final File target, final byte[] content )
+		throws IOException
+	{
+		final File directory = target.getParentFile();
+		if( ! directory.isDirectory() && ! directory.mkdirs() && ! directory.isDirectory() )
+		{
+			throw new IOException("Unable to create output directory " + directory);
+		}
+		final File temp = File.createTempFile(target.getName(), ".tmp", directory);
+		try
+		{
+			Files.write(temp.toPath(), content);
+			try
+			{
+				Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			}
+			catch( AtomicMoveNotSupportedException e )
+			{
+				Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		finally
+		{
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Watch the directories of all local documents the roots depend on that are not watched yet.
+	 */
+	private void watchDirectories()
+		throws IOException
+	{
+		for( URL u : getAllDocuments() )
+		{
+			final File f = DependencyGraph.Dependency.getFile(u);
+			if( f == null )
+			{
+				continue;
+			}
+			final Path directory = f.getAbsoluteFile().toPath().normalize().getParent();
+			if( directory != null && ! this.watchedDirectories.contains(directory) && Files.isDirectory(directory) )
+			{
+				directory.register(this.watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+				this.watchedDirectories.add(directory);
+				LOGGER.debug("Watching {}", directory);
+			}
+		}
+	}
+}
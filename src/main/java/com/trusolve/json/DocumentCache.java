@@ -0,0 +1,392 @@
+package com.trusolve.json;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Cache of the external documents loaded by the {@link JsonDereferencer}.  Documents are indexed
+ * by a normalized form of their URL (matching the semantics of {@link URL#sameFile(URL)}) and
+ * in reverse by the identity of the parsed document, so both lookups are constant time.  The
+ * cache is safe to use from several threads so documents can be loaded concurrently.
+ * <p>
+ * A cache can be backed by a shared cache whose documents are never modified.  Documents are then
+ * loaded once into the shared cache and every backed cache receives its own deep copy, which is
+ * much cheaper than parsing the document again.
+ */
+class DocumentCache
+{
+	private final Map<String,JsonNode> documents = new HashMap<String,JsonNode>();
+	private final Map<JsonNode,DocumentInfo> documentInfo = new IdentityHashMap<JsonNode,DocumentInfo>();
+	private final DocumentCache shared;
+	private PersistentDocumentCache persistentCache = null;
+	private boolean lazy = false;
+	private DereferenceMetrics metrics = null;
+	private DocumentLoader loader = HttpDocumentLoader.getDefault();
+
+	DocumentCache()
+	{
+		this(null);
+	}
+
+	/**
+	 * @param shared
+	 *          Cache of unmodified documents that loads are copied from, or null to parse every
+	 *          document loaded into this cache.
+	 */
+	DocumentCache( final DocumentCache shared )
+	{
+		this.shared = shared;
+	}
+
+	/**
+	 * Set the on disk cache used when documents are loaded.
+	 *
+	 * @param persistentCache
+	 *          The persistent cache or null to always parse documents from their source.
+	 */
+	void setPersistentCache( final PersistentDocumentCache persistentCache )
+	{
+		this.persistentCache = persistentCache;
+	}
+
+	/**
+	 * Set the loader of the documents that are not local files.
+	 */
+	void setLoader( final DocumentLoader loader )
+	{
+		this.loader = loader;
+	}
+
+	/**
+	 * Read documents lazily, parsing only the parts of them that are used.  Lazily read documents
+	 * bypass the persistent cache, which would need the whole tree.
+	 *
+	 * @see DocumentReader#loadLazy(URL)
+	 */
+	void setLazy( final boolean lazy )
+	{
+		this.lazy = lazy;
+	}
+
+	/**
+	 * Record every document loaded into this cache.
+	 *
+	 * @param metrics
+	 *          The metrics receiving the loads or null to record nothing.
+	 */
+	void setMetrics( final DereferenceMetrics metrics )
+	{
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Get a previously loaded document.
+	 *
+	 * @param url
+	 *          The location of the document, any fragment is ignored.
+	 * @return The parsed document or null if it has not been loaded.
+	 */
+	synchronized JsonNode get( final URL url )
+	{
+		if( url == null )
+		{
+			return null;
+		}
+		return documents.get(key(url));
+	}
+
+	/**
+	 * Add a loaded document to the cache.
+	 *
+	 * @param url
+	 *          The location the document was loaded from.
+	 * @param document
+	 *          The parsed document.
+	 */
+	synchronized void put( final URL url, final JsonNode document )
+	{
+		put(url, document, null);
+	}
+
+	private synchronized void put( final URL url, final JsonNode document, final DependencyGraph.Dependency state )
+	{
+		final JsonNode previous = documents.put(key(url), document);
+		if( previous != null && previous != document )
+		{
+			documentInfo.remove(previous);
+		}
+		documentInfo.put(document, new DocumentInfo(url, state));
+	}
+
+	/**
+	 * Remove a document, so that it is read again the next time it is loaded.
+	 *
+	 * @param url
+	 *          The location of the document, any fragment is ignored.
+	 * @return Whether the document was cached.
+	 */
+	synchronized boolean remove( final URL url )
+	{
+		final JsonNode document = documents.remove(key(url));
+		if( document == null )
+		{
+			return false;
+		}
+		documentInfo.remove(document);
+		return true;
+	}
+
+	/**
+	 * Remove the local files that changed since they were loaded, for caches that outlive a single
+	 * build.  Documents that are not local files are expected to be versioned by their URL and are
+	 * kept.
+	 *
+	 * @return The number of removed documents.
+	 */
+	synchronized int evictChanged()
+	{
+		int evicted = 0;
+		for( Iterator<Map.Entry<JsonNode,DocumentInfo>> i = documentInfo.entrySet().iterator() ; i.hasNext() ; )
+		{
+			final DocumentInfo info = i.next().getValue();
+			if( info.state != null && ! info.state.isCurrent() )
+			{
+				documents.remove(key(info.url));
+				i.remove();
+				evicted++;
+			}
+		}
+		return evicted;
+	}
+
+	/**
+	 * Load and parse a document, adding it to the cache.  When a persistent cache is set the parsed
+	 * document is taken from (or stored to) it.  Documents that are not local files are loaded by the
+	 * {@link DocumentLoader}, which revalidates their persistent copy.  When the cache is backed by a shared cache the
+	 * document is a copy of the shared document instead.  Parsing happens outside of the cache lock; if
+	 * another thread stored the same document first, that copy is kept and returned.
+	 * <p>
+	 * The size and modification time of a local file are recorded before it is read (see
+	 * {@link #getState(JsonNode)}), so a change while the document is read is noticed by the next
+	 * check.
+	 *
+	 * @param url
+	 *          The location of the document.
+	 * @return The parsed document.
+	 * @throws IOException
+	 *           If the document could not be read or parsed.
+	 */
+	JsonNode load( final URL url )
+		throws IOException
+	{
+		final DereferenceMetrics m = this.metrics;
+		final long start = m == null ? 0 : System.nanoTime();
+		DependencyGraph.Dependency state = DependencyGraph.Dependency.forDocument(url);
+		DereferenceMetrics.DocumentSource source = DereferenceMetrics.DocumentSource.PARSED;
+		JsonNode document = null;
+		// what the reader or loader read from the location, nothing for a document taken from a cache
+		long bytes = 0;
+		if( this.shared != null )
+		{
+			JsonNode sharedDocument = this.shared.get(url);
+			if( sharedDocument == null )
+			{
+				sharedDocument = this.shared.load(url);
+			}
+			// the copy has the content the shared cache read, in the state it read it
+			final DependencyGraph.Dependency sharedState = this.shared.getState(sharedDocument);
+			if( sharedState != null )
+			{
+				state = sharedState;
+			}
+			document = sharedDocument.deepCopy();
+			source = DereferenceMetrics.DocumentSource.SESSION;
+		}
+		else if( DocumentReader.toFile(url) == null )
+		{
+			// a remote document, revalidated by the loader when the persistent cache has a copy
+			final URL location = new URL(url.getProtocol(), url.getHost(), url.getPort(), url.getFile());
+			final DocumentLoader.Document cached = this.persistentCache == null ? null : this.persistentCache.getRemote(location);
+			final DocumentLoader.Document loaded = this.loader.load(location, cached);
+			document = loaded.getContent();
+			if( loaded == cached )
+			{
+				source = DereferenceMetrics.DocumentSource.PERSISTENT_CACHE;
+			}
+			else
+			{
+				bytes = loaded.getBytes();
+			}
+			if( this.persistentCache != null )
+			{
+				if( m != null )
+				{
+					m.persistentCache(loaded == cached);
+				}
+				if( loaded != cached )
+				{
+					this.persistentCache.putRemote(location, loaded);
+				}
+			}
+		}
+		else if( this.lazy )
+		{
+			final DocumentLoader.Document loaded = DocumentReader.loadLazy(url);
+			document = loaded.getContent();
+			bytes = loaded.getBytes();
+			source = DereferenceMetrics.DocumentSource.LAZY;
+		}
+		else if( this.persistentCache != null )
+		{
+			document = this.persistentCache.get(url);
+			source = DereferenceMetrics.DocumentSource.PERSISTENT_CACHE;
+			if( m != null )
+			{
+				m.persistentCache(document != null);
+			}
+		}
+		if( document == null )
+		{
+			final DocumentLoader.Document loaded = DocumentReader.load(url);
+			document = loaded.getContent();
+			bytes = loaded.getBytes();
+			source = DereferenceMetrics.DocumentSource.PARSED;
+			if( this.persistentCache != null )
+			{
+				this.persistentCache.put(url, document);
+			}
+		}
+		if( m != null )
+		{
+			m.documentLoaded(new URL(url.getProtocol(), url.getHost(), url.getPort(), url.getFile()), source, bytes, System.nanoTime() - start);
+		}
+		synchronized( this )
+		{
+			final JsonNode existing = documents.get(key(url));
+			if( existing != null )
+			{
+				return existing;
+			}
+			put(url, document, state);
+		}
+		return document;
+	}
+
+	/**
+	 * Get the location a cached document was loaded from.
+	 *
+	 * @param document
+	 *          The parsed document (compared by identity).
+	 * @return The URL of the document or null if the document is not in the cache.
+	 */
+	synchronized URL getUrl( final JsonNode document )
+	{
+		final DocumentInfo info = documentInfo.get(document);
+		return info == null ? null : info.getUrl();
+	}
+
+	/**
+	 * Get the state of a cached document when it was read.
+	 *
+	 * @param document
+	 *          The parsed document (compared by identity).
+	 * @return The size and modification time of the document recorded before it was read, or null
+	 *         if the document is not in the cache.
+	 */
+	synchronized DependencyGraph.Dependency getState( final JsonNode document )
+	{
+		final DocumentInfo info = documentInfo.get(document);
+		return info == null ? null : info.state;
+	}
+
+	/**
+	 * Get what is known about a cached document.
+	 *
+	 * @param document
+	 *          The parsed document (compared by identity).
+	 * @return The information or null if the document is not in the cache.
+	 */
+	synchronized DocumentInfo getInfo( final JsonNode document )
+	{
+		return documentInfo.get(document);
+	}
+
+	/**
+	 * Build the lookup key for a URL.  Two URLs produce the same key when
+	 * {@link URL#sameFile(URL)} considers them equal: the fragment is dropped, the protocol and host
+	 * are compared case insensitively and a missing port is replaced with the protocol default.
+	 */
+	static String key( final URL url )
+	{
+		int port = url.getPort();
+		if( port == -1 )
+		{
+			port = url.getDefaultPort();
+		}
+		final StringBuilder sb = new StringBuilder();
+		sb.append(url.getProtocol().toLowerCase(Locale.ROOT));
+		sb.append("://");
+		if( url.getHost() != null )
+		{
+			sb.append(url.getHost().toLowerCase(Locale.ROOT));
+		}
+		sb.append(':');
+		sb.append(port);
+		sb.append(url.getFile());
+		return sb.toString();
+	}
+
+	/**
+	 * The location of a cached document and the values derived from it, worked out once when the
+	 * document is added to the cache.
+	 */
+	static final class DocumentInfo
+	{
+		private final URL url;
+		private final String artifactId;
+		private final String postFix;
+		private final DependencyGraph.Dependency state;
+
+		DocumentInfo( final URL url, final DependencyGraph.Dependency state )
+		{
+			this.url = url;
+			this.state = state;
+			final String path = url.getPath();
+			final String[] components = path.split("/");
+			this.artifactId = components.length > 3 ? components[components.length - 3] : null;
+			final int nameStart = path.lastIndexOf('/') + 1;
+			final int extension = path.lastIndexOf('.');
+			this.postFix = extension >= nameStart ? "-" + path.substring(nameStart, extension) : null;
+		}
+
+		URL getUrl()
+		{
+			return url;
+		}
+
+		/**
+		 * @return The third to last component of the document path, which is the Maven artifact id
+		 *         for documents unpacked from a library artifact, or null if the path is too short.
+		 */
+		String getArtifactId()
+		{
+			return artifactId;
+		}
+
+		/**
+		 * @return "-" followed by the file name without extension, or null if the file name has no
+		 *         extension.
+		 */
+		String getPostFix()
+		{
+			return postFix;
+		}
+	}
+}
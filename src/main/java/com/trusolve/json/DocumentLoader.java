@@ -0,0 +1,112 @@
+package com.trusolve.json;
+
+import java.io.IOException;
+import java.net.URL;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Loads the referenced documents that are not local files, for instance the "https:" documents
+ * of a shared API library.  Local files are always read by the dereferencer itself.  The default
+ * loader is {@link HttpDocumentLoader#getDefault()}; a different one is set with
+ * {@link JsonDereferencer#setDocumentLoader(DocumentLoader)}.
+ * <p>
+ * A loader may be called from several threads at once, by a parallel prefetch or by several
+ * dereferencers sharing it.
+ */
+public interface DocumentLoader
+{
+	/**
+	 * A loaded document together with the validators its source sent, which are stored with the
+	 * document in the persistent cache and sent back to revalidate it, and the number of bytes that
+	 * were read to load it.
+	 */
+	public static final class Document
+	{
+		private final JsonNode content;
+		private final String etag;
+		private final String lastModified;
+		private final long bytes;
+
+		/**
+		 * Create a document of which the number of bytes read is not known.
+		 *
+		 * @param content
+		 *          The parsed document.
+		 * @param etag
+		 *          The entity tag of the document, or null.
+		 * @param lastModified
+		 *          The last modification time of the document as sent by its source (an HTTP date),
+		 *          or null.
+		 */
+		public Document( final JsonNode content, final String etag, final String lastModified )
+		{
+			this(content, etag, lastModified, -1);
+		}
+
+		/**
+		 * @param content
+		 *          The parsed document.
+		 * @param etag
+		 *          The entity tag of the document, or null.
+		 * @param lastModified
+		 *          The last modification time of the document as sent by its source (an HTTP date),
+		 *          or null.
+		 * @param bytes
+		 *          The number of bytes of the document that were read, or -1 if not known.
+		 */
+		public Document( final JsonNode content, final String etag, final String lastModified, final long bytes )
+		{
+			this.content = content;
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.bytes = bytes;
+		}
+
+		public JsonNode getContent()
+		{
+			return content;
+		}
+
+		public String getEtag()
+		{
+			return etag;
+		}
+
+		public String getLastModified()
+		{
+			return lastModified;
+		}
+
+		/**
+		 * @return The number of bytes of the document that were read, or -1 if not known.
+		 */
+		public long getBytes()
+		{
+			return bytes;
+		}
+
+		/**
+		 * @return Whether the document can be revalidated, that is whether it has a validator.
+		 */
+		public boolean isValidatable()
+		{
+			return etag != null || lastModified != null;
+		}
+	}
+
+	/**
+	 * Load a document.
+	 *
+	 * @param url
+	 *          The location of the document, without a fragment.
+	 * @param cached
+	 *          A previously loaded copy of the document with its validators, or null.  A loader able
+	 *          to tell that the document did not change since returns this copy.
+	 * @return The document.
+	 * @throws IOException
+	 *           If the document could not be loaded or parsed.
+	 */
+	Document load( URL url, Document cached )
+		throws IOException;
+}
@@ -0,0 +1,254 @@
+package com.trusolve.json;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Loads every document that is reachable through external references of a root document into a
+ * {@link DocumentCache} before the dereference walk starts.  Loaded documents are scanned for
+ * further references on the loading thread, so the whole dependency tree is fetched and parsed on
+ * a bounded pool of threads.  Failures are only logged here; the dereference walk reports them
+ * when (and if) it actually needs the document.  The limit on the number of referenced documents
+ * is enforced here though, before the documents beyond it are fetched.
+ */
+class DocumentPrefetcher
+{
+	private static final Logger LOGGER = LoggerFactory.getLogger(DocumentPrefetcher.class);
+	private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+	private final DocumentCache cache;
+	private final int threads;
+	private final File sourceDirectory;
+	private final int maxDocuments;
+
+	/**
+	 * @param sourceDirectory
+	 *          Directory that references without a scheme are relative to.
+	 * @param maxDocuments
+	 *          Maximum number of referenced documents, zero or less for no limit.
+	 */
+	DocumentPrefetcher( final DocumentCache cache, final int threads, final File sourceDirectory, final int maxDocuments )
+	{
+		this.cache = cache;
+		this.threads = threads;
+		this.sourceDirectory = sourceDirectory;
+		this.maxDocuments = maxDocuments;
+	}
+
+	/**
+	 * Load all documents referenced by the root document and by the documents it references.
+	 *
+	 * @param rootNode
+	 *          The document being dereferenced.
+	 * @param rootContext
+	 *          The location of the root document, may be null.
+	 * @throws IOException
+	 *           If more documents are reachable than the limit allows.
+	 */
+	void prefetch( final JsonNode rootNode, final URL rootContext )
+		throws IOException
+	{
+		final ExecutorService executor = Executors.newFixedThreadPool(this.threads, new ThreadFactory()
+		{
+			@Override
+			public Thread newThread( Runnable r )
+			{
+				final Thread t = new Thread(r, "json-prefetch-" + THREAD_COUNT.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		final CompletionService<List<URL>> completionService = new ExecutorCompletionService<List<URL>>(executor);
+		final Set<String> requested = new HashSet<String>();
+		int pending = 0;
+		try
+		{
+			List<URL> references = findReferences(rootNode, rootContext, sourceDirectory);
+			while( true )
+			{
+				for( final URL u : references )
+				{
+					if( requested.add(DocumentCache.key(u)) )
+					{
+						if( this.maxDocuments > 0 && requested.size() > this.maxDocuments )
+						{
+							throw new IOException("Reference to " + u + " exceeds the limit of " + this.maxDocuments + " referenced documents");
+						}
+						completionService.submit(new LoadTask(u));
+						pending++;
+					}
+				}
+				if( pending == 0 )
+				{
+					break;
+				}
+				try
+				{
+					references = completionService.take().get();
+				}
+				catch( ExecutionException e )
+				{
+					LOGGER.debug("Unable to prefetch referenced document.", e.getCause());
+					references = new ArrayList<URL>();
+				}
+				pending--;
+			}
+		}
+		catch( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Loads one document (unless it is already cached) and returns the documents it references.
+	 */
+	private class LoadTask
+		implements Callable<List<URL>>
+	{
+		private final URL location;
+
+		LoadTask( final URL location )
+		{
+			this.location = location;
+		}
+
+		@Override
+		public List<URL> call()
+			throws Exception
+		{
+			JsonNode document = cache.get(location);
+			if( document == null )
+			{
+				LOGGER.debug("Prefetching {}", location);
+				document = cache.load(location);
+			}
+			return findReferences(document, location, sourceDirectory);
+		}
+	}
+
+	/**
+	 * Collect the locations of the documents referenced from a document.  Aliases declared with
+	 * $refAliases anywhere in the document are applied to "@alias#pointer" references.
+	 */
+	static List<URL> findReferences( final JsonNode document, final URL context, final File sourceDirectory )
+	{
+		final Map<String,String> aliases = new HashMap<String,String>();
+		final List<String> refs = new ArrayList<String>();
+		collect(document, aliases, refs);
+
+		final List<URL> locations = new ArrayList<URL>();
+		for( String refHref : refs )
+		{
+			if( refHref.startsWith("@") )
+			{
+				final int pointerIndex = refHref.indexOf('#');
+				if( pointerIndex <= 0 )
+				{
+					continue;
+				}
+				final String aliasValue = aliases.get(refHref.substring(1, pointerIndex));
+				if( aliasValue == null )
+				{
+					continue;
+				}
+				refHref = aliasValue + refHref.substring(pointerIndex);
+			}
+			try
+			{
+				locations.add(JsonDereferencer.getLoadLocation(sourceDirectory, context, new URI(refHref)));
+			}
+			catch( Exception e )
+			{
+				LOGGER.debug("Unable to resolve reference {} for prefetch.", refHref);
+			}
+		}
+		return locations;
+	}
+
+	private static void collect( final JsonNode node, final Map<String,String> aliases, final List<String> refs )
+	{
+		if( node.isObject() )
+		{
+			if( node.has("$refIgnore") )
+			{
+				return;
+			}
+			final JsonNode aliasObject = node.get("$refAliases");
+			if( aliasObject != null && aliasObject.isObject() )
+			{
+				for( Iterator<Map.Entry<String,JsonNode>> i = aliasObject.fields() ; i.hasNext() ; )
+				{
+					final Map.Entry<String,JsonNode> e = i.next();
+					if( e.getValue().isValueNode() )
+					{
+						aliases.put(e.getKey(), e.getValue().asText());
+					}
+				}
+			}
+			final JsonNode ref = node.get("$ref");
+			if( ref != null )
+			{
+				if( ref.isTextual() )
+				{
+					addRef(ref.asText(), refs);
+				}
+				else if( ref.isArray() )
+				{
+					for( JsonNode r : ref )
+					{
+						if( r.isTextual() )
+						{
+							addRef(r.asText(), refs);
+						}
+					}
+				}
+			}
+			for( JsonNode child : node )
+			{
+				collect(child, aliases, refs);
+			}
+		}
+		else if( node.isArray() )
+		{
+			for( JsonNode child : node )
+			{
+				collect(child, aliases, refs);
+			}
+		}
+	}
+
+	private static void addRef( final String refHref, final List<String> refs )
+	{
+		if( refHref != null && ! refHref.startsWith("#") )
+		{
+			refs.add(refHref);
+		}
+	}
+}
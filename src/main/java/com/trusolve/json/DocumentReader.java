@@ -0,0 +1,308 @@
+package com.trusolve.json;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.SoftReference;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+
+/**
+ * Reads JSON documents, taking a faster path for local files than {@link URL#openStream()}.
+ * A "file:" document is read through a {@link FileChannel}: small files are read whole into a
+ * buffer kept per thread and parsed from the byte array, large files are memory mapped and parsed
+ * straight from the mapping, so they are neither copied into the heap nor pulled through the
+ * small buffers of a URL connection.  Other URLs, and files that cannot be opened this way, are
+ * read by Jackson from the URL as before.
+ * <p>
+ * Local files can also be read lazily: a streaming scan records where the members of every top
+ * level object start and end, and a member is only parsed into a tree when it is first read
+ * (see {@link LazyMembers}).  A document of which only a few definitions are referenced then
+ * costs a scan of its text plus the trees of those definitions.
+ */
+final class DocumentReader
+{
+	/**
+	 * Files of this size or larger are memory mapped instead of read into a buffer.
+	 */
+	static final long MAP_THRESHOLD = 4L * 1024L * 1024L;
+
+	private static final ThreadLocal<SoftReference<byte[]>> BUFFERS = new ThreadLocal<SoftReference<byte[]>>();
+
+	private DocumentReader()
+	{
+	}
+
+	/**
+	 * Read and parse a JSON document.
+	 *
+	 * @param url
+	 *          The location of the document, any fragment is ignored.
+	 * @return The parsed document.
+	 * @throws IOException
+	 *           If the document could not be read or parsed.
+	 */
+	static JsonNode read( final URL url )
+		throws IOException
+	{
+		return load(url).getContent();
+	}
+
+	/**
+	 * Read and parse a JSON document, as {@link #read(URL)}, counting the bytes read.
+	 *
+	 * @param url
+	 *          The location of the document, any fragment is ignored.
+	 * @return The parsed document, without validators.  The number of bytes is not known for
+	 *         documents that are not local files.
+	 * @throws IOException
+	 *           If the document could not be read or parsed.
+	 */
+	static DocumentLoader.Document load( final URL url )
+		throws IOException
+	{
+		final File file = toFile(url);
+		if( file == null || ! file.isFile() )
+		{
+			// leave missing files to Jackson so the failure is reported the way it always was
+			return new DocumentLoader.Document(ObjectMappers.json().readTree(url), null, null);
+		}
+		final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try
+		{
+			final long size = channel.size();
+			if( size >= MAP_THRESHOLD )
+			{
+				final MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+				final InputStream in = new ByteBufferBackedInputStream(mapped);
+				return new DocumentLoader.Document(ObjectMappers.json().readTree(in), null, null, size);
+			}
+			final byte[] buffer = buffer((int)size);
+			final ByteBuffer bb = ByteBuffer.wrap(buffer, 0, (int)size);
+			while( bb.hasRemaining() )
+			{
+				if( channel.read(bb) < 0 )
+				{
+					break;
+				}
+			}
+			return new DocumentLoader.Document(ObjectMappers.json().readValue(buffer, 0, bb.position(), JsonNode.class), null, null, bb.position());
+		}
+		finally
+		{
+			channel.close();
+		}
+	}
+
+	/**
+	 * Read a document lazily.  The members of the top level object are read right away, but the
+	 * container members of the objects inside it (the definitions, parameters, responses...) are
+	 * only parsed when they are used.  Documents that are not local files, do not have an object at
+	 * the top or are not encoded in UTF-8 are read completely, as with {@link #read(URL)}.
+	 *
+	 * @param url
+	 *          The location of the document, any fragment is ignored.
+	 * @return The document, without validators, and the number of bytes scanned.
+	 * @throws IOException
+	 *           If the document could not be read or is not valid JSON.
+	 */
+	static DocumentLoader.Document loadLazy( final URL url )
+		throws IOException
+	{
+		final File file = toFile(url);
+		if( file == null || ! file.isFile() )
+		{
+			return load(url);
+		}
+		final Source source;
+		if( file.length() >= MAP_THRESHOLD )
+		{
+			final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			try
+			{
+				source = new Source(url, null, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+			}
+			finally
+			{
+				channel.close();
+			}
+		}
+		else
+		{
+			// the text is kept for as long as the document, so it cannot use the thread's buffer
+			source = new Source(url, Files.readAllBytes(file.toPath()), null);
+		}
+		final ObjectNode document = scan(source);
+		return document == null ? load(url) : new DocumentLoader.Document(document, null, null, source.length());
+	}
+
+	/**
+	 * Scan a document, parsing the members of the top level object but only recording the extent
+	 * of the container members one level further down.
+	 *
+	 * @return The document or null if it cannot be read lazily.
+	 */
+	private static ObjectNode scan( final Source source )
+		throws IOException
+	{
+		final JsonParser p = source.parser(0, source.length());
+		try
+		{
+			if( p.nextToken() != JsonToken.START_OBJECT || p.getTokenLocation().getByteOffset() < 0 )
+			{
+				// not an object, or not UTF-8 and there are no byte offsets
+				return null;
+			}
+			final ObjectNode document = JsonNodeFactory.instance.objectNode();
+			while( p.nextToken() == JsonToken.FIELD_NAME )
+			{
+				final String name = p.getCurrentName();
+				if( p.nextToken() == JsonToken.START_OBJECT )
+				{
+					final LazyMembers members = new LazyMembers(source);
+					while( p.nextToken() == JsonToken.FIELD_NAME )
+					{
+						final String memberName = p.getCurrentName();
+						final JsonToken t = p.nextToken();
+						if( t == JsonToken.START_OBJECT || t == JsonToken.START_ARRAY )
+						{
+							final long start = p.getTokenLocation().getByteOffset();
+							p.skipChildren();
+							members.putUnparsed(memberName, start, p.getCurrentLocation().getByteOffset());
+						}
+						else
+						{
+							members.put(memberName, ObjectMappers.json().<JsonNode>readTree(p));
+						}
+					}
+					document.set(name, new ObjectNode(JsonNodeFactory.instance, members));
+				}
+				else
+				{
+					document.set(name, ObjectMappers.json().<JsonNode>readTree(p));
+				}
+			}
+			if( p.nextToken() != null )
+			{
+				throw new IOException("Unexpected content after the document in " + source);
+			}
+			return document;
+		}
+		finally
+		{
+			p.close();
+		}
+	}
+
+	/**
+	 * The text of a lazily read document, either in the heap or memory mapped.
+	 */
+	static final class Source
+	{
+		private final URL url;
+		private final byte[] bytes;
+		private final ByteBuffer mapped;
+
+		Source( final URL url, final byte[] bytes, final ByteBuffer mapped )
+		{
+			this.url = url;
+			this.bytes = bytes;
+			this.mapped = mapped;
+		}
+
+		long length()
+		{
+			return bytes != null ? bytes.length : mapped.capacity();
+		}
+
+		JsonParser parser( final long start, final long end )
+			throws IOException
+		{
+			if( bytes != null )
+			{
+				return ObjectMappers.json().getFactory().createParser(bytes, (int)start, (int)( end - start ));
+			}
+			final ByteBuffer range = mapped.duplicate();
+			range.limit((int)end);
+			range.position((int)start);
+			return ObjectMappers.json().getFactory().createParser(new ByteBufferBackedInputStream(range));
+		}
+
+		/**
+		 * Parse a value of the document.
+		 *
+		 * @param start
+		 *          Byte offset of the first character of the value.
+		 * @param end
+		 *          Byte offset after the last character of the value.
+		 */
+		JsonNode parse( final long start, final long end )
+			throws IOException
+		{
+			final JsonParser p = parser(start, end);
+			try
+			{
+				return ObjectMappers.json().readTree(p);
+			}
+			finally
+			{
+				p.close();
+			}
+		}
+
+		@Override
+		public String toString()
+		{
+			return url.toExternalForm();
+		}
+	}
+
+	/**
+	 * Get the local file of a "file:" URL.
+	 *
+	 * @return The file or null if the URL does not point to a local file.
+	 */
+	static File toFile( final URL url )
+	{
+		if( ! "file".equalsIgnoreCase(url.getProtocol()) )
+		{
+			return null;
+		}
+		try
+		{
+			return new File(url.toURI().getPath());
+		}
+		catch( Exception e )
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Get the buffer of the current thread, growing it when it is too small.  The parser does not
+	 * keep a reference to its input once the tree is built, so the buffer is reused by the next
+	 * read on the same thread.
+	 */
+	private static byte[] buffer( final int size )
+	{
+		final SoftReference<byte[]> ref = BUFFERS.get();
+		byte[] buffer = ref == null ? null : ref.get();
+		if( buffer == null || buffer.length < size )
+		{
+			buffer = new byte[Math.max(size, 64 * 1024)];
+			BUFFERS.set(new SoftReference<byte[]>(buffer));
+		}
+		return buffer;
+	}
+}
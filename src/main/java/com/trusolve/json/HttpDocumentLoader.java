@@ -0,0 +1,232 @@
+package com.trusolve.json;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Loads "http:" and "https:" documents with connect and read timeouts, so that a host that does not
+ * answer fails the build instead of stalling it, and with a limit on the requests sent to the same
+ * host at once, so that a parallel prefetch does not flood it.  Connections are kept alive and
+ * reused between requests: every response is read to its end and its stream closed, never
+ * disconnected, which lets the JDK return the connection to its keep-alive cache (see the
+ * "http.keepAlive" and "http.maxConnections" system properties).
+ * <p>
+ * A document with validators is revalidated with a conditional GET ("If-None-Match",
+ * "If-Modified-Since"); when the server answers "304 Not Modified" the cached copy is returned
+ * without transferring or parsing the document again.
+ * <p>
+ * Documents of other schemes ("jar:", "ftp:"...) are read as before, without these controls.
+ */
+public class HttpDocumentLoader
+	implements DocumentLoader
+{
+	private static final Logger LOGGER = LoggerFactory.getLogger(HttpDocumentLoader.class);
+	private static final HttpDocumentLoader DEFAULT = new HttpDocumentLoader();
+
+	public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+	public static final int DEFAULT_READ_TIMEOUT = 30000;
+	public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 4;
+
+	private final ConcurrentMap<String,Semaphore> hosts = new ConcurrentHashMap<String,Semaphore>();
+	private volatile int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+	private volatile int readTimeout = DEFAULT_READ_TIMEOUT;
+	private volatile int maxConnectionsPerHost = DEFAULT_MAX_CONNECTIONS_PER_HOST;
+
+	/**
+	 * @return The loader used by dereferencers that were not given one.  It is shared so that its
+	 *         per host limit holds across all of them.
+	 */
+	public static HttpDocumentLoader getDefault()
+	{
+		return DEFAULT;
+	}
+
+	/**
+	 * @param connectTimeout
+	 *          Time allowed to open a connection, in milliseconds; zero waits forever.
+	 */
+	public void setConnectTimeout( int connectTimeout )
+	{
+		this.connectTimeout = connectTimeout;
+	}
+
+	/**
+	 * @param readTimeout
+	 *          Time allowed between two reads of a response, in milliseconds; zero waits forever.
+	 */
+	public void setReadTimeout( int readTimeout )
+	{
+		this.readTimeout = readTimeout;
+	}
+
+	/**
+	 * @param maxConnectionsPerHost
+	 *          Maximum number of requests sent to the same host (scheme, host and port) at once.
+	 *          Requests over the limit wait for a running one to finish.
+	 */
+	public synchronized void setMaxConnectionsPerHost( int maxConnectionsPerHost )
+	{
+		this.maxConnectionsPerHost = maxConnectionsPerHost;
+		// requests already running release the permits of the old limit
+		this.hosts.clear();
+	}
+
+	@Override
+	public Document load( final URL url, final Document cached )
+		throws IOException
+	{
+		final String protocol = url.getProtocol().toLowerCase(Locale.ROOT);
+		if( ! "http".equals(protocol) && ! "https".equals(protocol) )
+		{
+			return DocumentReader.load(url);
+		}
+		final Semaphore permits = getPermits(url);
+		try
+		{
+			permits.acquire();
+		}
+		catch( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting to load " + url);
+		}
+		try
+		{
+			return fetch(url, cached);
+		}
+		finally
+		{
+			permits.release();
+		}
+	}
+
+	private Document fetch( final URL url, final Document cached )
+		throws IOException
+	{
+		final URLConnection connection = url.openConnection();
+		connection.setConnectTimeout(this.connectTimeout);
+		connection.setReadTimeout(this.readTimeout);
+		connection.setUseCaches(false);
+		connection.setRequestProperty("Accept", "application/json");
+		if( cached != null && cached.getEtag() != null )
+		{
+			connection.setRequestProperty("If-None-Match", cached.getEtag());
+		}
+		if( cached != null && cached.getLastModified() != null )
+		{
+			connection.setRequestProperty("If-Modified-Since", cached.getLastModified());
+		}
+		final HttpURLConnection http = (HttpURLConnection)connection;
+		final int status;
+		try
+		{
+			status = http.getResponseCode();
+		}
+		catch( IOException e )
+		{
+			throw new IOException("Unable to load " + url + ": " + e.getMessage(), e);
+		}
+		if( status == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null )
+		{
+			LOGGER.debug("{} not modified", url);
+			drain(http.getInputStream());
+			return cached;
+		}
+		if( status < 200 || status >= 300 )
+		{
+			// the error body must be consumed too, or the connection is not reused
+			drain(http.getErrorStream());
+			throw new IOException("Unable to load " + url + ": HTTP " + status + " " + http.getResponseMessage());
+		}
+		final byte[] body;
+		try
+		{
+			body = readFully(http.getInputStream());
+		}
+		catch( IOException e )
+		{
+			throw new IOException("Unable to load " + url + ": " + e.getMessage(), e);
+		}
+		final JsonNode document = ObjectMappers.json().readTree(body);
+		LOGGER.debug("Loaded {}", url);
+		return new Document(document, http.getHeaderField("ETag"), http.getHeaderField("Last-Modified"), body.length);
+	}
+
+	private Semaphore getPermits( final URL url )
+	{
+		final int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+		final String host = url.getProtocol().toLowerCase(Locale.ROOT) + "://" + url.getHost().toLowerCase(Locale.ROOT) + ":" + port;
+		Semaphore permits = this.hosts.get(host);
+		if( permits == null )
+		{
+			final Semaphore created = new Semaphore(Math.max(1, this.maxConnectionsPerHost));
+			permits = this.hosts.putIfAbsent(host, created);
+			if( permits == null )
+			{
+				permits = created;
+			}
+		}
+		return permits;
+	}
+
+	/**
+	 * Read a response to its end and close it, so its connection can be reused.  The body is read
+	 * before it is parsed, since the parser would stop at the end of the document and close the
+	 * stream without reaching its end.
+	 */
+	private static byte[] readFully( final InputStream in )
+		throws IOException
+	{
+		try
+		{
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			final byte[] buffer = new byte[8192];
+			for( int n = in.read(buffer) ; n >= 0 ; n = in.read(buffer) )
+			{
+				bytes.write(buffer, 0, n);
+			}
+			return bytes.toByteArray();
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/**
+	 * Read a response to its end and close it, so its connection can be reused.
+	 */
+	private static void drain( final InputStream in )
+		throws IOException
+	{
+		if( in == null )
+		{
+			return;
+		}
+		try
+		{
+			final byte[] buffer = new byte[4096];
+			while( in.read(buffer) >= 0 )
+			{
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,556 @@
+package com.trusolve.json;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+/**
+ * Dereferences many roots while remembering the documents each root pulled in.  A root is only
+ * dereferenced again when it, or one of the documents recorded for it in the
+ * {@link DependencyGraph}, changed; otherwise the previous output is returned.  With a state
+ * directory the graph and the outputs survive between builds, without one they are kept in memory.
+ * <p>
+ * Roots supplied as text without an identifier are identified by a hash of their content, so every
+ * edit of such a root adds a new entry; the entries not used for the retention period are dropped
+ * when the state is {@link #save() saved}.  Several builds may share a state directory: saving
+ * merges the roots of this instance into the graph on disk under a lock.
+ */
+public class IncrementalDereferencer
+{
+	private static final Logger LOGGER = LoggerFactory.getLogger(IncrementalDereferencer.class);
+	private static final String GRAPH_FILE = "dependencies.json";
+	private static final String LOCK_FILE = "dependencies.lock";
+	private static final String OUTPUT_SUFFIX = ".json";
+	private static final String CONTENT_KEY_PREFIX = "sha256:";
+	// file locks are held by the whole process, threads saving at once must take turns themselves
+	private static final Object SAVE_LOCK = new Object();
+
+	/**
+	 * Default time a root identified by its content is kept without being used: seven days.
+	 */
+	public static final long DEFAULT_RETENTION = TimeUnit.DAYS.toMillis(7);
+
+	private final File stateDirectory;
+	private final DependencyGraph graph;
+	private final Map<String,String> outputs = new HashMap<String,String>();
+	private final Set<String> changedRoots = new HashSet<String>();
+	private long retention = DEFAULT_RETENTION;
+	private int prefetchThreads = 0;
+	private int parallelism = 0;
+	private File cacheDirectory = null;
+	private boolean lazyDocuments = false;
+	private boolean canonicalOutput = false;
+	private int maxResolutionDepth = JsonDereferencer.DEFAULT_MAX_RESOLUTION_DEPTH;
+	private int maxDocuments = JsonDereferencer.DEFAULT_MAX_DOCUMENTS;
+	private long maxNodes = JsonDereferencer.DEFAULT_MAX_NODES;
+	private String contentHash = null;
+	private boolean reused = false;
+	private ResolutionTrace trace = null;
+	private DereferenceMetrics metrics = null;
+
+	/**
+	 * Create an incremental dereferencer that keeps its state in memory.
+	 */
+	public IncrementalDereferencer()
+	{
+		this.stateDirectory = null;
+		this.graph = new DependencyGraph();
+	}
+
+	/**
+	 * Create an incremental dereferencer that keeps its state in a directory.
+	 *
+	 * @param stateDirectory
+	 *          Directory holding the dependency graph and the previous outputs.
+	 * @throws IOException
+	 *           If an existing dependency graph could not be read.
+	 */
+	public IncrementalDereferencer( final File stateDirectory )
+		throws IOException
+	{
+		this.stateDirectory = stateDirectory;
+		final File graphFile = new File(stateDirectory, GRAPH_FILE);
+		if( graphFile.isFile() )
+		{
+			this.graph = DependencyGraph.fromJson(ObjectMappers.json().readTree(graphFile));
+		}
+		else
+		{
+			this.graph = new DependencyGraph();
+		}
+	}
+
+	public DependencyGraph getDependencyGraph()
+	{
+		return this.graph;
+	}
+
+	/**
+	 * Dereference a root document, reusing the previous output if nothing it depends on changed.
+	 *
+	 * @param root
+	 *          Location of the root document.
+	 * @return The dereferenced document.
+	 */
+	public String dereference( final URL root )
+		throws JsonProcessingException, IOException, URISyntaxException
+	{
+		final String rootKey = DocumentCache.key(root);
+		final String previous = getCurrentOutput(rootKey, null);
+		if( previous != null )
+		{
+			LOGGER.debug("Reusing the previous output of {}", root);
+			return reused(rootKey, previous);
+		}
+		this.reused = false;
+		final DependencyGraph.Dependency rootDependency = DependencyGraph.Dependency.forDocument(root);
+		final JsonDereferencer jd = newDereferencer(new JsonDereferencer(root));
+		final String output = jd.dereferenceToString();
+		this.contentHash = jd.getContentHash();
+
+		final List<DependencyGraph.Dependency> documents = new ArrayList<DependencyGraph.Dependency>();
+		documents.add(rootDependency);
+		documents.addAll(jd.getReferencedDocuments());
+		store(rootKey, documents, output, null);
+		return output;
+	}
+
+	/**
+	 * Dereference a root document supplied as text.  The root is identified by a hash of its content
+	 * (and its context), so the previous output is reused when the same content is dereferenced
+	 * again and none of the referenced documents changed.
+	 *
+	 * @param document
+	 *          The root document.
+	 * @param context
+	 *          The location relative references are resolved against, may be null.
+	 * @return The dereferenced document.
+	 */
+	public String dereference( final String document, final URL context )
+		throws JsonProcessingException, IOException, URISyntaxException
+	{
+		return dereference(document, context, null);
+	}
+
+	/**
+	 * Dereference a root document supplied as text under a stable identifier, such as the path of
+	 * its source.  The entry of the root is replaced whenever its content changes, instead of a new
+	 * entry being added for every version of the content.
+	 *
+	 * @param document
+	 *          The root document.
+	 * @param context
+	 *          The location relative references are resolved against, may be null.
+	 * @param rootId
+	 *          The identifier of the root, or null to identify it by a hash of its content.
+	 * @return The dereferenced document.
+	 */
+	public String dereference( final String document, final URL context, final String rootId )
+		throws JsonProcessingException, IOException, URISyntaxException
+	{
+		final String documentHash = DigestUtils.sha256Hex(document);
+		String rootKey = rootId == null ? CONTENT_KEY_PREFIX + documentHash : "id:" + rootId;
+		if( context != null )
+		{
+			rootKey = rootKey + "@" + DocumentCache.key(context);
+		}
+		// a content addressed root cannot change without changing its key
+		final String rootHash = rootId == null ? null : documentHash;
+		final String previous = getCurrentOutput(rootKey, rootHash);
+		if( previous != null )
+		{
+			LOGGER.debug("Reusing the previous output of {}", rootKey);
+			return reused(rootKey, previous);
+		}
+		this.reused = false;
+		final JsonDereferencer jd = newDereferencer(new JsonDereferencer(document, context));
+		final String output = jd.dereferenceToString();
+		this.contentHash = jd.getContentHash();
+		store(rootKey, jd.getReferencedDocuments(), output, rootHash);
+		return output;
+	}
+
+	public String dereference( final Reader in, final URL context )
+		throws JsonProcessingException, IOException, URISyntaxException
+	{
+		return dereference(in, context, null);
+	}
+
+	/**
+	 * @see #dereference(String, URL, String)
+	 */
+	public String dereference( final Reader in, final URL context, final String rootId )
+		throws JsonProcessingException, IOException, URISyntaxException
+	{
+		final StringWriter sw = new StringWriter();
+		final char[] buf = new char[8192];
+		for( int n = in.read(buf) ; n >= 0 ; n = in.read(buf) )
+		{
+			sw.write(buf, 0, n);
+		}
+		return dereference(sw.toString(), context, rootId);
+	}
+
+	/**
+	 * Get the roots that need to be dereferenced again after documents changed.
+	 *
+	 * @param changedDocuments
+	 *          Locations of the changed documents.
+	 * @return Identifiers of the affected roots.
+	 */
+	public Set<String> getAffectedRoots( final Collection<URL> changedDocuments )
+	{
+		final Set<String> affected = new HashSet<String>();
+		for( URL u : changedDocuments )
+		{
+			affected.addAll(this.graph.getDependentRoots(u));
+		}
+		return affected;
+	}
+
+	/**
+	 * Forget the output of every root that depends on a document, forcing those roots to be
+	 * dereferenced again even if the change is not visible in the document's size or timestamp.
+	 */
+	public synchronized void invalidate( final URL document )
+	{
+		for( String rootKey : this.graph.getDependentRoots(document) )
+		{
+			removeRoot(rootKey);
+		}
+	}
+
+	/**
+	 * Drop the roots identified by their content that were not used for the retention period, then
+	 * write the dependency graph to the state directory.  The roots this instance dereferenced,
+	 * reused or dropped are merged into the graph on disk, holding a lock on the state directory,
+	 * so that builds sharing the directory keep each other's roots.
+	 */
+	public synchronized void save()
+		throws IOException
+	{
+		if( this.stateDirectory == null )
+		{
+			prune(this.graph);
+			return;
+		}
+		createStateDirectory();
+		synchronized( SAVE_LOCK )
+		{
+			saveLocked();
+		}
+	}
+
+	private void saveLocked()
+		throws IOException
+	{
+		final RandomAccessFile lockFile = new RandomAccessFile(new File(this.stateDirectory, LOCK_FILE), "rw");
+		try
+		{
+			final FileChannel channel = lockFile.getChannel();
+			final FileLock lock = channel.lock();
+			try
+			{
+				final File graphFile = new File(this.stateDirectory, GRAPH_FILE);
+				final DependencyGraph merged = graphFile.isFile() ? DependencyGraph.fromJson(ObjectMappers.json().readTree(graphFile)) : new DependencyGraph();
+				for( String rootKey : this.changedRoots )
+				{
+					merged.copyRoot(this.graph, rootKey);
+				}
+				prune(merged);
+				writeAtomically(graphFile, ObjectMappers.compactWriter().writeValueAsBytes(merged.toJson()));
+				// take over the roots other builds saved meanwhile
+				final Set<String> rootKeys = merged.getRoots();
+				rootKeys.addAll(this.graph.getRoots());
+				for( String rootKey : rootKeys )
+				{
+					this.graph.copyRoot(merged, rootKey);
+				}
+				this.changedRoots.clear();
+			}
+			finally
+			{
+				lock.release();
+			}
+		}
+		finally
+		{
+			lockFile.close();
+		}
+	}
+
+	/**
+	 * Set how long a root identified by its content is kept without being used, zero or less to keep
+	 * it forever.
+	 *
+	 * @param retention
+	 *          The time in milliseconds, {@link #DEFAULT_RETENTION} by default.
+	 */
+	public void setRetention( long retention )
+	{
+		this.retention = retention;
+	}
+
+	public void setPrefetchThreads( int prefetchThreads )
+	{
+		this.prefetchThreads = prefetchThreads;
+	}
+
+	public void setParallelism( int parallelism )
+	{
+		this.parallelism = parallelism;
+	}
+
+	public void setCacheDirectory( File cacheDirectory )
+	{
+		this.cacheDirectory = cacheDirectory;
+	}
+
+	public void setLazyDocuments( boolean lazyDocuments )
+	{
+		this.lazyDocuments = lazyDocuments;
+	}
+
+	/**
+	 * @see JsonDereferencer#setCanonicalOutput(boolean)
+	 */
+	public void setCanonicalOutput( boolean canonicalOutput )
+	{
+		this.canonicalOutput = canonicalOutput;
+	}
+
+	/**
+	 * @see JsonDereferencer#setMaxResolutionDepth(int)
+	 */
+	public void setMaxResolutionDepth( int maxResolutionDepth )
+	{
+		this.maxResolutionDepth = maxResolutionDepth;
+	}
+
+	/**
+	 * @see JsonDereferencer#setMaxDocuments(int)
+	 */
+	public void setMaxDocuments( int maxDocuments )
+	{
+		this.maxDocuments = maxDocuments;
+	}
+
+	/**
+	 * @see JsonDereferencer#setMaxNodes(long)
+	 */
+	public void setMaxNodes( long maxNodes )
+	{
+		this.maxNodes = maxNodes;
+	}
+
+	/**
+	 * @return The SHA-256 hash (hexadecimal) of the output last returned, whether it was
+	 *         dereferenced or reused, or null if canonical output is off.
+	 * @see JsonDereferencer#getContentHash()
+	 */
+	public String getContentHash()
+	{
+		return this.contentHash;
+	}
+
+	/**
+	 * Record the reference resolutions of the roots that are dereferenced again.  Reused outputs
+	 * add nothing to the trace.
+	 *
+	 * @see JsonDereferencer#setTrace(ResolutionTrace)
+	 */
+	public void setTrace( ResolutionTrace trace )
+	{
+		this.trace = trace;
+	}
+
+	/**
+	 * Count the work of the roots that are dereferenced again.  Reused outputs add nothing to the
+	 * metrics.
+	 *
+	 * @see JsonDereferencer#setMetrics(DereferenceMetrics)
+	 */
+	public void setMetrics( DereferenceMetrics metrics )
+	{
+		this.metrics = metrics;
+	}
+
+	/**
+	 * @return Whether the output last returned was the previous output, reused without a
+	 *         dereference.
+	 */
+	public boolean isReused()
+	{
+		return this.reused;
+	}
+
+	private String reused( final String rootKey, final String previous )
+	{
+		this.graph.touch(rootKey);
+		this.changedRoots.add(rootKey);
+		this.reused = true;
+		this.contentHash = this.canonicalOutput ? DigestUtils.sha256Hex(previous.getBytes(StandardCharsets.UTF_8)) : null;
+		return previous;
+	}
+
+	private JsonDereferencer newDereferencer( final JsonDereferencer jd )
+	{
+		jd.setPrefetchThreads(this.prefetchThreads);
+		jd.setParallelism(this.parallelism);
+		jd.setCacheDirectory(this.cacheDirectory);
+		jd.setLazyDocuments(this.lazyDocuments);
+		jd.setCanonicalOutput(this.canonicalOutput);
+		jd.setMaxResolutionDepth(this.maxResolutionDepth);
+		jd.setMaxDocuments(this.maxDocuments);
+		jd.setMaxNodes(this.maxNodes);
+		if( this.trace != null )
+		{
+			jd.setTrace(this.trace);
+		}
+		if( this.metrics != null )
+		{
+			jd.setMetrics(this.metrics);
+		}
+		return jd;
+	}
+
+	/**
+	 * Describe the options that change the output bytes, so that output produced with other
+	 * options is not reused.  The prefetch, parallelism, lazy parsing and persistent cache only
+	 * change how the output is computed.  A root with a stable identifier also records the hash of
+	 * its content.
+	 */
+	private String getFingerprint( final String rootHash )
+	{
+		final String fingerprint = "canonical=" + this.canonicalOutput;
+		return rootHash == null ? fingerprint : fingerprint + ";document=" + rootHash;
+	}
+
+	private synchronized String getCurrentOutput( final String rootKey, final String rootHash )
+		throws IOException
+	{
+		if( ! this.graph.isCurrent(rootKey, getFingerprint(rootHash)) )
+		{
+			return null;
+		}
+		if( this.stateDirectory == null )
+		{
+			return this.outputs.get(rootKey);
+		}
+		final File outputFile = getOutputFile(rootKey);
+		if( ! outputFile.isFile() )
+		{
+			return null;
+		}
+		return new String(Files.readAllBytes(outputFile.toPath()), StandardCharsets.UTF_8);
+	}
+
+	private synchronized void store( final String rootKey, final Collection<DependencyGraph.Dependency> documents, final String output, final String rootHash )
+		throws IOException
+	{
+		this.graph.setDependencies(rootKey, documents, getFingerprint(rootHash));
+		this.changedRoots.add(rootKey);
+		if( this.stateDirectory == null )
+		{
+			this.outputs.put(rootKey, output);
+		}
+		else
+		{
+			writeAtomically(getOutputFile(rootKey), output.getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	private void removeRoot( final String rootKey )
+	{
+		this.graph.removeRoot(rootKey);
+		this.changedRoots.add(rootKey);
+		this.outputs.remove(rootKey);
+		if( this.stateDirectory != null )
+		{
+			getOutputFile(rootKey).delete();
+		}
+	}
+
+	/**
+	 * Drop the roots of a graph that are identified by their content and were not used for the
+	 * retention period, together with their outputs.
+	 */
+	private void prune( final DependencyGraph target )
+	{
+		if( this.retention <= 0 )
+		{
+			return;
+		}
+		final long oldest = System.currentTimeMillis() - this.retention;
+		for( String rootKey : target.getRoots() )
+		{
+			if( rootKey.startsWith(CONTENT_KEY_PREFIX) && target.getLastUsed(rootKey) < oldest )
+			{
+				LOGGER.debug("Dropping {}, unused since {}", rootKey, target.getLastUsed(rootKey));
+				target.removeRoot(rootKey);
+				removeRoot(rootKey);
+			}
+		}
+	}
+
+	private File getOutputFile( final String rootKey )
+	{
+		return new File(this.stateDirectory, DigestUtils.sha256Hex(rootKey) + OUTPUT_SUFFIX);
+	}
+
+	private void createStateDirectory()
+		throws IOException
+	{
+		if( ! this.stateDirectory.isDirectory() && ! this.stateDirectory.mkdirs() && ! this.stateDirectory.isDirectory() )
+		{
+			throw new IOException("Unable to create state directory " + this.stateDirectory);
+		}
+	}
+
+	private void writeAtomically( final File target, final byte[] content )
+		throws IOException
+	{
+		createStateDirectory();
+		final File temp = File.createTempFile("state", ".tmp", this.stateDirectory);
+		try
+		{
+			Files.write(temp.toPath(), content);
+			try
+			{
+				Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			}
+			catch( AtomicMoveNotSupportedException e )
+			{
+				Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		finally
+		{
+			temp.delete();
+		}
+	}
+}
@@ -0,0 +1,444 @@
+package com.trusolve.json;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.codec.binary.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Long running process serving dereference, YAML/JSON conversion and API distribution requests
+ * of the Ant filters (through {@link JsonDaemonClient}), so that builds do not pay for starting a
+ * JVM, warming up Jackson and parsing the shared library documents every time.
+ * <p>
+ * The daemon listens on a loopback port and publishes the port with a random token in its state
+ * file (see {@link JsonDaemonClient#STATE_FILE_PROPERTY}); requests without the token are refused.
+ * The referenced documents it parses are kept between requests, and every request first drops the
+ * local files that changed since they were parsed, so a build always sees the current sources.
+ * Documents that are not local files are kept until the daemon stops.
+ * <p>
+ * Start it with {@code java com.trusolve.json.JsonDaemon [port]}; the default port 0 picks a free
+ * one.  Stop it with the client ({@link JsonDaemonClient#shutdown()}) or by ending the process.
+ */
+public class JsonDaemon
+	implements Closeable
+{
+	private static final Logger LOGGER = LoggerFactory.getLogger(JsonDaemon.class);
+	private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+	private static final int TOKEN_BYTES = 32;
+	// time allowed for a client to send its request
+	private static final int REQUEST_TIMEOUT = 60000;
+
+	private final DocumentCache documents = new DocumentCache();
+	private final File stateFile;
+	private final String token;
+	private final CountDownLatch stopped = new CountDownLatch(1);
+	private ServerSocket server = null;
+	private ExecutorService workers = null;
+	private int threads = Runtime.getRuntime().availableProcessors();
+
+	public static void main( String[] args )
+	{
+		try
+		{
+			final JsonDaemon daemon = new JsonDaemon(JsonDaemonProtocol.getStateFile());
+			daemon.start(args.length > 0 ? Integer.parseInt(args[0]) : 0);
+			Runtime.getRuntime().addShutdownHook(new Thread("json-daemon-shutdown")
+			{
+				@Override
+				public void run()
+				{
+					daemon.close();
+				}
+			});
+			System.out.println("JSON daemon listening on port " + daemon.getPort());
+			daemon.awaitTermination();
+		}
+		catch( Exception e )
+		{
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * @param stateFile
+	 *          File in which the port and token are published while the daemon runs.
+	 */
+	public JsonDaemon( final File stateFile )
+	{
+		this.stateFile = stateFile;
+		final byte[] t = new byte[TOKEN_BYTES];
+		new SecureRandom().nextBytes(t);
+		this.token = Hex.encodeHexString(t);
+	}
+
+	/**
+	 * Set the number of requests processed at the same time, the number of processors by default.
+	 */
+	public void setThreads( int threads )
+	{
+		this.threads = threads;
+	}
+
+	/**
+	 * Start listening and publish the state file.
+	 *
+	 * @param port
+	 *          The loopback port to listen on, zero for any free port.
+	 */
+	public synchronized void start( final int port )
+		throws IOException
+	{
+		if( this.server != null )
+		{
+			throw new IllegalStateException("The JSON daemon is already running");
+		}
+		this.server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		this.workers = Executors.newFixedThreadPool(Math.max(1, this.threads), new ThreadFactory()
+		{
+			@Override
+			public Thread newThread( Runnable r )
+			{
+				final Thread t = new Thread(r, "json-daemon-" + THREAD_COUNT.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		writeStateFile();
+		final Thread acceptor = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				accept();
+			}
+		}, "json-daemon-accept");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		LOGGER.info("JSON daemon listening on port {}", this.server.getLocalPort());
+	}
+
+	/**
+	 * @return The port the daemon listens on.
+	 */
+	public synchronized int getPort()
+	{
+		return this.server == null ? -1 : this.server.getLocalPort();
+	}
+
+	/**
+	 * Wait until the daemon is closed.
+	 */
+	public void awaitTermination()
+		throws InterruptedException
+	{
+		this.stopped.await();
+	}
+
+	/**
+	 * Stop listening and remove the state file.  Requests being processed are abandoned.
+	 */
+	@Override
+	public synchronized void close()
+	{
+		if( this.server == null )
+		{
+			return;
+		}
+		try
+		{
+			this.server.close();
+		}
+		catch( IOException e )
+		{
+			LOGGER.debug("Unable to close the JSON daemon socket", e);
+		}
+		this.workers.shutdownNow();
+		this.server = null;
+		deleteStateFile();
+		this.stopped.countDown();
+		LOGGER.info("JSON daemon stopped");
+	}
+
+	private void accept()
+	{
+		final ServerSocket s;
+		synchronized( this )
+		{
+			s = this.server;
+		}
+		while( s != null && ! s.isClosed() )
+		{
+			try
+			{
+				final Socket connection = s.accept();
+				this.workers.submit(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						serve(connection);
+					}
+				});
+			}
+			catch( SocketException e )
+			{
+				// closed
+			}
+			catch( Exception e )
+			{
+				LOGGER.warn("JSON daemon failed to accept a connection", e);
+			}
+		}
+	}
+
+	private void serve( final Socket connection )
+	{
+		try
+		{
+			final DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+			final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+			connection.setSoTimeout(REQUEST_TIMEOUT);
+			final ObjectNode request = JsonDaemonProtocol.readHeader(in);
+			final ObjectNode response = JsonNodeFactory.instance.objectNode();
+			byte[] body = new byte[0];
+			final String operation = request.path("operation").asText();
+			final long start = System.nanoTime();
+			// the body is only read once the token is checked, so strangers cannot make the daemon allocate it
+			if( ! MessageDigest.isEqual(this.token.getBytes(StandardCharsets.UTF_8), request.path("token").asText().getBytes(StandardCharsets.UTF_8)) )
+			{
+				LOGGER.warn("JSON daemon refused a request without a valid token");
+				response.put("status", JsonDaemonProtocol.STATUS_ERROR);
+				response.put("message", "Invalid token");
+			}
+			else if( request.path("version").asInt() != JsonDaemonProtocol.VERSION )
+			{
+				response.put("status", JsonDaemonProtocol.STATUS_ERROR);
+				response.put("message", "Unsupported protocol version " + request.path("version").asText());
+			}
+			else
+			{
+				final byte[] document = JsonDaemonProtocol.readBody(in);
+				try
+				{
+					body = process(operation, request, document, response);
+					response.put("status", JsonDaemonProtocol.STATUS_OK);
+				}
+				catch( Exception e )
+				{
+					LOGGER.debug("JSON daemon {} request failed", operation, e);
+					response.put("status", JsonDaemonProtocol.STATUS_ERROR);
+					response.put("message", String.valueOf(e.getMessage()));
+					body = new byte[0];
+				}
+			}
+			LOGGER.debug("JSON daemon {} request processed in {} ms", operation, ( System.nanoTime() - start ) / 1000000L);
+			JsonDaemonProtocol.write(out, response, body);
+			if( JsonDaemonProtocol.SHUTDOWN.equals(operation) && JsonDaemonProtocol.STATUS_OK.equals(response.path("status").asText()) )
+			{
+				close();
+			}
+		}
+		catch( Exception e )
+		{
+			LOGGER.debug("JSON daemon connection failed", e);
+		}
+		finally
+		{
+			try
+			{
+				connection.close();
+			}
+			catch( IOException e )
+			{
+				LOGGER.debug("Unable to close a JSON daemon connection", e);
+			}
+		}
+	}
+
+	private byte[] process( final String operation, final ObjectNode request, final byte[] document, final ObjectNode response )
+		throws Exception
+	{
+		if( JsonDaemonProtocol.DEREFERENCE.equals(operation) )
+		{
+			return dereference(request, document, response);
+		}
+		if( JsonDaemonProtocol.YAML_TO_JSON.equals(operation) )
+		{
+			final JsonNode tree = new YamlToJson().convert(new InputStreamReader(new ByteArrayInputStream(document), StandardCharsets.UTF_8));
+			return ObjectMappers.prettyWriter().writeValueAsBytes(tree);
+		}
+		if( JsonDaemonProtocol.JSON_TO_YAML.equals(operation) )
+		{
+			// written as JsonToYamlFilter does, the generator is not closed so no document end is emitted
+			final StringWriter sw = new StringWriter();
+			final JsonGenerator yg = ObjectMappers.yamlWriter().getFactory().createGenerator(sw);
+			ObjectMappers.yamlWriter().writeValue(yg, ObjectMappers.json().readTree(document));
+			return sw.toString().getBytes(StandardCharsets.UTF_8);
+		}
+		if( JsonDaemonProtocol.API_DISTRIBUTION.equals(operation) )
+		{
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			final Writer w = new OutputStreamWriter(bytes, StandardCharsets.UTF_8);
+			new ApiDistribution((ObjectNode)ObjectMappers.json().readTree(document)).writeTo(w);
+			w.flush();
+			return bytes.toByteArray();
+		}
+		if( JsonDaemonProtocol.PING.equals(operation) || JsonDaemonProtocol.SHUTDOWN.equals(operation) )
+		{
+			return new byte[0];
+		}
+		throw new IOException("Unknown operation \"" + operation + "\"");
+	}
+
+	private byte[] dereference( final ObjectNode request, final byte[] document, final ObjectNode response )
+		throws Exception
+	{
+		final int evicted = this.documents.evictChanged();
+		if( evicted > 0 )
+		{
+			LOGGER.debug("Dropped {} changed documents", evicted);
+		}
+		final JsonNode options = request.path("options");
+		final String context = request.path("context").asText(null);
+		final JsonDereferencer jd = new JsonDereferencer(ObjectMappers.json().readTree(document), context == null ? null : new URL(context));
+		final boolean lazyDocuments = options.path("lazyDocuments").asBoolean(false);
+		final String cacheDirectory = options.path("cacheDirectory").asText(null);
+		if( lazyDocuments || cacheDirectory != null )
+		{
+			// the shared documents are whole parsed trees, a request that wants lazy parsing or its
+			// own persistent cache reads the referenced documents itself
+			jd.setLazyDocuments(lazyDocuments);
+			jd.setCacheDirectory(cacheDirectory == null ? null : new File(cacheDirectory));
+		}
+		else
+		{
+			jd.setSharedDocuments(this.documents);
+		}
+		final String sourceDirectory = request.path("sourceDirectory").asText(null);
+		if( sourceDirectory != null )
+		{
+			jd.setSourceDirectory(new File(sourceDirectory));
+		}
+		jd.setPrefetchThreads(options.path("prefetchThreads").asInt(0));
+		jd.setParallelism(options.path("parallelism").asInt(0));
+		jd.setMaxResolutionDepth(options.path("maxResolutionDepth").asInt(JsonDereferencer.DEFAULT_MAX_RESOLUTION_DEPTH));
+		jd.setMaxDocuments(options.path("maxDocuments").asInt(JsonDereferencer.DEFAULT_MAX_DOCUMENTS));
+		jd.setMaxNodes(options.path("maxNodes").asLong(JsonDereferencer.DEFAULT_MAX_NODES));
+		jd.setCanonicalOutput(options.path("canonical").asBoolean(false));
+		if( options.path("trace").asBoolean(false) )
+		{
+			jd.setTrace(new ResolutionTrace());
+		}
+		if( options.path("metrics").asBoolean(false) )
+		{
+			jd.setMetrics(new DereferenceMetrics());
+		}
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try
+		{
+			jd.dereferenceTo(bytes);
+		}
+		finally
+		{
+			// the trace and metrics are most useful when the dereference failed
+			if( jd.getTrace() != null )
+			{
+				response.set("trace", jd.getTrace().toJson());
+			}
+			if( jd.getMetrics() != null )
+			{
+				response.set("metrics", jd.getMetrics().toJson());
+			}
+		}
+		if( jd.getContentHash() != null )
+		{
+			response.put("hash", jd.getContentHash());
+		}
+		return bytes.toByteArray();
+	}
+
+	private void writeStateFile()
+		throws IOException
+	{
+		final File directory = this.stateFile.getAbsoluteFile().getParentFile();
+		if( ! directory.isDirectory() && ! directory.mkdirs() && ! directory.isDirectory() )
+		{
+			throw new IOException("Unable to create " + directory);
+		}
+		final ObjectNode state = JsonNodeFactory.instance.objectNode();
+		state.put("port", this.server.getLocalPort());
+		state.put("token", this.token);
+		final File temp = File.createTempFile("json-daemon", ".tmp", directory);
+		try
+		{
+			// the token lets every process that can read the file use the daemon
+			try
+			{
+				Files.setPosixFilePermissions(temp.toPath(), PosixFilePermissions.fromString("rw-------"));
+			}
+			catch( UnsupportedOperationException e )
+			{
+				LOGGER.debug("Unable to restrict the permissions of {}", temp);
+			}
+			ObjectMappers.prettyWriter().writeValue(temp, state);
+			Files.move(temp.toPath(), this.stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		finally
+		{
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Remove the state file unless another daemon replaced it meanwhile.
+	 */
+	private void deleteStateFile()
+	{
+		try
+		{
+			if( this.stateFile.isFile() && this.token.equals(ObjectMappers.json().readTree(this.stateFile).path("token").asText()) )
+			{
+				Files.delete(this.stateFile.toPath());
+			}
+		}
+		catch( IOException e )
+		{
+			LOGGER.debug("Unable to remove {}", this.stateFile, e);
+		}
+	}
+}
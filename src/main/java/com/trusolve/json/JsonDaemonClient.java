@@ -0,0 +1,344 @@
+package com.trusolve.json;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Sends requests to a running {@link JsonDaemon}.  Callers look the daemon up with {@link #find()}
+ * and do the work in process when there is none, or when a request fails with
+ * {@link UnavailableException} because the daemon went away; any other failure is the failure of
+ * the request itself, as it would have happened in process, and is reported with a
+ * {@link RequestFailedException}.
+ */
+public class JsonDaemonClient
+{
+	private static final Logger LOGGER = LoggerFactory.getLogger(JsonDaemonClient.class);
+
+	/**
+	 * System property naming the state file of the daemon, which holds its port and token.  The
+	 * default is ".trusolve/json-daemon.json" in the home directory of the user.
+	 */
+	public static final String STATE_FILE_PROPERTY = "trusolve.jsonDaemon.stateFile";
+	/**
+	 * System property that, set to "false", stops {@link #find()} from looking for a daemon.
+	 */
+	public static final String ENABLED_PROPERTY = "trusolve.jsonDaemon.enabled";
+
+	/**
+	 * Default time to wait for the answer to a request, in milliseconds.  A daemon that does not
+	 * answer in time is treated as unavailable, so the caller does the work in process rather than
+	 * hanging the build.
+	 */
+	public static final int DEFAULT_TIMEOUT = 120000;
+
+	private static final int CONNECT_TIMEOUT = 1000;
+
+	private final int port;
+	private final String token;
+	private int timeout = DEFAULT_TIMEOUT;
+
+	/**
+	 * The daemon could not be reached or stopped answering; the request should be done in process.
+	 */
+	public static class UnavailableException
+		extends IOException
+	{
+		private static final long serialVersionUID = 1L;
+
+		UnavailableException( final String message, final Throwable cause )
+		{
+			super(message, cause);
+		}
+	}
+
+	/**
+	 * The daemon processed the request and it failed.  A failed dereference still carries the trace
+	 * and metrics that were requested, up to the failure.
+	 */
+	public static class RequestFailedException
+		extends IOException
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final transient ObjectNode header;
+
+		RequestFailedException( final ObjectNode header )
+		{
+			super(header.path("message").asText("JSON daemon request failed"));
+			this.header = header;
+		}
+
+		/**
+		 * @return The resolution trace of a dereference as written by
+		 *         {@link ResolutionTrace#toJson()}, or null if it was not requested.
+		 */
+		public JsonNode getTrace()
+		{
+			return header == null ? null : header.get("trace");
+		}
+
+		/**
+		 * @return The metrics of a dereference as written by {@link DereferenceMetrics#toJson()},
+		 *         or null if they were not requested.
+		 */
+		public JsonNode getMetrics()
+		{
+			return header == null ? null : header.get("metrics");
+		}
+	}
+
+	/**
+	 * The answer of the daemon to a successful request.
+	 */
+	public static class Response
+	{
+		private final ObjectNode header;
+		private final byte[] body;
+
+		Response( final ObjectNode header, final byte[] body )
+		{
+			this.header = header;
+			this.body = body;
+		}
+
+		/**
+		 * @return The output document.
+		 */
+		public String getDocument()
+		{
+			return new String(body, StandardCharsets.UTF_8);
+		}
+
+		/**
+		 * @return The SHA-256 hash of canonical dereference output, or null.
+		 */
+		public String getHash()
+		{
+			return header.path("hash").asText(null);
+		}
+
+		/**
+		 * @return The resolution trace of a dereference as written by
+		 *         {@link ResolutionTrace#toJson()}, or null if it was not requested.
+		 */
+		public JsonNode getTrace()
+		{
+			return header.get("trace");
+		}
+
+		/**
+		 * @return The metrics of a dereference as written by {@link DereferenceMetrics#toJson()},
+		 *         or null if they were not requested.
+		 */
+		public JsonNode getMetrics()
+		{
+			return header.get("metrics");
+		}
+	}
+
+	JsonDaemonClient( final int port, final String token )
+	{
+		this.port = port;
+		this.token = token;
+	}
+
+	/**
+	 * Look for a running daemon of the current user.
+	 *
+	 * @return A client of the daemon or null if no daemon published its state file (or the lookup
+	 *         is disabled with {@link #ENABLED_PROPERTY}).  A daemon that stopped without removing
+	 *         the file is only noticed when a request fails with {@link UnavailableException}.
+	 */
+	public static JsonDaemonClient find()
+	{
+		if( "false".equalsIgnoreCase(System.getProperty(ENABLED_PROPERTY, "").trim()) )
+		{
+			return null;
+		}
+		final File stateFile = JsonDaemonProtocol.getStateFile();
+		if( ! stateFile.isFile() )
+		{
+			return null;
+		}
+		try
+		{
+			final JsonNode state = ObjectMappers.json().readTree(stateFile);
+			final int port = state.path("port").asInt(-1);
+			final String token = state.path("token").asText(null);
+			if( port <= 0 || token == null )
+			{
+				LOGGER.warn("Ignoring malformed JSON daemon state file {}", stateFile);
+				return null;
+			}
+			return new JsonDaemonClient(port, token);
+		}
+		catch( IOException e )
+		{
+			LOGGER.warn("Unable to read JSON daemon state file {}", stateFile, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Set how long to wait for the answer to a request, {@link #DEFAULT_TIMEOUT} by default or zero
+	 * to wait as long as the request takes.  A request that times out fails with
+	 * {@link UnavailableException}.
+	 *
+	 * @param timeout
+	 *          The timeout in milliseconds.
+	 */
+	public void setTimeout( int timeout )
+	{
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Dereference a document.
+	 *
+	 * @param document
+	 *          The document text.
+	 * @param context
+	 *          The location of the document, may be null.
+	 * @param sourceDirectory
+	 *          Directory that references without a scheme are relative to, see
+	 *          {@link JsonDereferencer#setSourceDirectory(File)}.
+	 * @param options
+	 *          Options of the dereference: prefetchThreads, parallelism, maxResolutionDepth,
+	 *          maxDocuments, maxNodes (numbers), canonical, lazyDocuments, trace and metrics
+	 *          (booleans) and cacheDirectory (an absolute path).  Missing options take the
+	 *          {@link JsonDereferencer} defaults.  A request with lazyDocuments or cacheDirectory
+	 *          reads its referenced documents itself instead of sharing the daemon's documents.
+	 * @throws RequestFailedException
+	 *           If the dereference failed, with the trace and metrics that were requested.
+	 */
+	public Response dereference( final String document, final URL context, final File sourceDirectory, final ObjectNode options )
+		throws IOException
+	{
+		final ObjectNode header = header(JsonDaemonProtocol.DEREFERENCE);
+		if( context != null )
+		{
+			header.put("context", context.toExternalForm());
+		}
+		header.put("sourceDirectory", sourceDirectory.getAbsolutePath());
+		header.set("options", options == null ? JsonNodeFactory.instance.objectNode() : options);
+		return send(header, document);
+	}
+
+	/**
+	 * Convert a YAML document to indented JSON, as {@link YamlToJson#convertToString(Reader)}.
+	 */
+	public String yamlToJson( final String document )
+		throws IOException
+	{
+		return send(header(JsonDaemonProtocol.YAML_TO_JSON), document).getDocument();
+	}
+
+	/**
+	 * Convert a JSON document to YAML with the default features.
+	 */
+	public String jsonToYaml( final String document )
+		throws IOException
+	{
+		return send(header(JsonDaemonProtocol.JSON_TO_YAML), document).getDocument();
+	}
+
+	/**
+	 * Process a distribution document, as {@link ApiDistribution#writeTo(java.io.Writer)}.
+	 */
+	public String apiDistribution( final String document )
+		throws IOException
+	{
+		return send(header(JsonDaemonProtocol.API_DISTRIBUTION), document).getDocument();
+	}
+
+	/**
+	 * Check that the daemon answers.
+	 */
+	public void ping()
+		throws IOException
+	{
+		send(header(JsonDaemonProtocol.PING), "");
+	}
+
+	/**
+	 * Stop the daemon.
+	 */
+	public void shutdown()
+		throws IOException
+	{
+		send(header(JsonDaemonProtocol.SHUTDOWN), "");
+	}
+
+	/**
+	 * Read a document to the end, for callers that need its text both for the daemon and for the in
+	 * process fallback.  The reader is not closed.
+	 */
+	public static String read( final Reader in )
+		throws IOException
+	{
+		final StringWriter sw = new StringWriter();
+		final char[] buffer = new char[8192];
+		for( int n = in.read(buffer) ; n >= 0 ; n = in.read(buffer) )
+		{
+			sw.write(buffer, 0, n);
+		}
+		return sw.toString();
+	}
+
+	private ObjectNode header( final String operation )
+	{
+		final ObjectNode header = JsonNodeFactory.instance.objectNode();
+		header.put("version", JsonDaemonProtocol.VERSION);
+		header.put("token", this.token);
+		header.put("operation", operation);
+		return header;
+	}
+
+	private Response send( final ObjectNode header, final String document )
+		throws IOException
+	{
+		final ObjectNode responseHeader;
+		final byte[] body;
+		final Socket socket = new Socket();
+		try
+		{
+			socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), this.port), CONNECT_TIMEOUT);
+			socket.setSoTimeout(this.timeout);
+			JsonDaemonProtocol.write(new DataOutputStream(new BufferedOutputStream(socket.getOutputStream())), header, document.getBytes(StandardCharsets.UTF_8));
+			final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			responseHeader = JsonDaemonProtocol.readHeader(in);
+			body = JsonDaemonProtocol.readBody(in);
+		}
+		catch( IOException e )
+		{
+			throw new UnavailableException("JSON daemon on port " + this.port + " is not available", e);
+		}
+		finally
+		{
+			socket.close();
+		}
+		if( ! JsonDaemonProtocol.STATUS_OK.equals(responseHeader.path("status").asText()) )
+		{
+			throw new RequestFailedException(responseHeader);
+		}
+		return new Response(responseHeader, body);
+	}
+}
@@ -0,0 +1,102 @@
+package com.trusolve.json;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * The wire format shared by {@link JsonDaemon} and {@link JsonDaemonClient}.  A connection carries
+ * one request and its response.  Both are a frame of a JSON header and a body:
+ * <pre>
+ * int    header length
+ * byte[] header, a JSON object in UTF-8
+ * int    body length
+ * byte[] body, the document in UTF-8
+ * </pre>
+ * The request header holds the token of the daemon, the operation and its options; the response
+ * header holds the status, an error message or the results that are not the output document.
+ */
+final class JsonDaemonProtocol
+{
+	static final int VERSION = 1;
+
+	static final String DEREFERENCE = "dereference";
+	static final String YAML_TO_JSON = "yamlToJson";
+	static final String JSON_TO_YAML = "jsonToYaml";
+	static final String API_DISTRIBUTION = "apiDistribution";
+	static final String PING = "ping";
+	static final String SHUTDOWN = "shutdown";
+
+	static final String STATUS_OK = "ok";
+	static final String STATUS_ERROR = "error";
+
+	private static final int MAX_HEADER_LENGTH = 1 << 20;
+	private static final int MAX_BODY_LENGTH = Integer.MAX_VALUE - 8;
+
+	private JsonDaemonProtocol()
+	{
+	}
+
+	static void write( final DataOutputStream out, final ObjectNode header, final byte[] body )
+		throws IOException
+	{
+		final byte[] h = ObjectMappers.compactWriter().writeValueAsBytes(header);
+		out.writeInt(h.length);
+		out.write(h);
+		out.writeInt(body.length);
+		out.write(body);
+		out.flush();
+	}
+
+	/**
+	 * Read the header of a frame.  The body follows and must be read with {@link #readBody}.
+	 */
+	static ObjectNode readHeader( final DataInputStream in )
+		throws IOException
+	{
+		final JsonNode header = ObjectMappers.json().readTree(readBlock(in, MAX_HEADER_LENGTH));
+		if( ! ( header instanceof ObjectNode ) )
+		{
+			throw new IOException("Malformed JSON daemon frame, the header is not an object");
+		}
+		return (ObjectNode)header;
+	}
+
+	static byte[] readBody( final DataInputStream in )
+		throws IOException
+	{
+		return readBlock(in, MAX_BODY_LENGTH);
+	}
+
+	private static byte[] readBlock( final DataInputStream in, final int maxLength )
+		throws IOException
+	{
+		final int length = in.readInt();
+		if( length < 0 || length > maxLength )
+		{
+			throw new IOException("Malformed JSON daemon frame, block length " + length);
+		}
+		final byte[] block = new byte[length];
+		in.readFully(block);
+		return block;
+	}
+
+	/**
+	 * Get the file in which a running daemon publishes its port and token.  The default is
+	 * ".trusolve/json-daemon.json" in the home directory of the user, so only the processes of that
+	 * user find the daemon; the system property "trusolve.jsonDaemon.stateFile" overrides it.
+	 */
+	static File getStateFile()
+	{
+		final String file = System.getProperty(JsonDaemonClient.STATE_FILE_PROPERTY);
+		if( file != null && file.trim().length() > 0 )
+		{
+			return new File(file.trim());
+		}
+		return new File(new File(System.getProperty("user.home"), ".trusolve"), "json-daemon.json");
+	}
+}
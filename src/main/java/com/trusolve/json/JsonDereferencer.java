@@ -2,29 +2,44 @@ package com.trusolve.json;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
 
 import org.slf4j.LoggerFactory;
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonPointer;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.ObjectWriter;
-import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
@@ -34,14 +49,41 @@ import com.fasterxml.jackson.databind.node.TextNode;
 public class JsonDereferencer
 {
 	private static final Logger LOGGER = LoggerFactory.getLogger(JsonDereferencer.class);
+	private static final int FORK_THRESHOLD = 16;
+	private static final Pattern EXTERNAL_LIB_PATH = Pattern.compile("/(parameters|components|definitions)/.*");
+	private static final int NODE_COUNT_BATCH = 1024;
+	public static final int DEFAULT_MAX_RESOLUTION_DEPTH = 100;
+	public static final int DEFAULT_MAX_DOCUMENTS = 1000;
+	public static final long DEFAULT_MAX_NODES = 50000000L;
 	private boolean dereferenceLocalRefs = false;
 	
 	private JsonNode rootNode;
 	private URL rootContext;
-	private Map<URL,JsonNode> dependencies = new HashMap<URL,JsonNode>();
-	private Map<JsonNode,Map<String,String>> refAliases = new IdentityHashMap<JsonNode,Map<String,String>>();
-	private boolean refGlobalInline = false;
-	private boolean refGlobalIncludedRefPostfix = false;
+	private DocumentCache dependencies = new DocumentCache();
+	private Map<JsonNode,Map<String,String>> refAliases = Collections.synchronizedMap(new IdentityHashMap<JsonNode,Map<String,String>>());
+	private volatile boolean refGlobalInline = false;
+	private volatile boolean refGlobalIncludedRefPostfix = false;
+	private Map<FragmentKey,ResolvedFragment> resolvedFragments = new HashMap<FragmentKey,ResolvedFragment>();
+	private final ReadWriteLock resolutionLock = new ReentrantReadWriteLock();
+	private boolean shareResolvedFragments = true;
+	private int prefetchThreads = 0;
+	private int parallelism = 0;
+	private File sourceDirectory = new File("src");
+	private ResolutionTrace trace = null;
+	private DereferenceMetrics metrics = null;
+	private boolean canonicalOutput = false;
+	private volatile String contentHash = null;
+	private int maxResolutionDepth = DEFAULT_MAX_RESOLUTION_DEPTH;
+	private int maxDocuments = DEFAULT_MAX_DOCUMENTS;
+	private long maxNodes = DEFAULT_MAX_NODES;
+	private final AtomicLong nodeCount = new AtomicLong();
+	private final Map<String,JsonPointer> pointers = new ConcurrentHashMap<String,JsonPointer>();
+	private final Map<String,PathSegments> paths = new HashMap<String,PathSegments>();
+	private final Set<String> localizedPaths = new HashSet<String>();
+	private final Set<String> localizingPaths = new HashSet<String>();
+	private final SharedNodes sharedNodes = new SharedNodes();
+	private final List<LocalizedNode> localizedNodes = new ArrayList<LocalizedNode>();
+	private Map<String,DependencyGraph.Dependency> referencedDocuments = new LinkedHashMap<String,DependencyGraph.Dependency>();
 	
 	public static void main(String[] args)
 	{
@@ -49,10 +91,7 @@ public class JsonDereferencer
 		{
 			URL fileURL = new File(args[0]).toURI().toURL();
 
-			ObjectMapper om = new ObjectMapper();
-			om.enable(SerializationFeature.INDENT_OUTPUT);
-			ObjectWriter ow = om.writer().withDefaultPrettyPrinter();
-			System.out.println(ow.writeValueAsString(new JsonDereferencer(fileURL).dereference()));
+			System.out.println(ObjectMappers.prettyWriter().writeValueAsString(new JsonDereferencer(fileURL).dereference()));
 		}
 		catch (Exception e)
 		{
@@ -66,10 +105,10 @@ public class JsonDereferencer
 		this.rootContext = rootContext;
 	}
 	
-	JsonDereferencer(URL u)
+	public JsonDereferencer(URL u)
 		throws JsonProcessingException, IOException
 	{
-		this(new ObjectMapper().readTree(u), u);
+		this(DocumentReader.read(u), u);
 	}
 
 	JsonDereferencer(File f)
@@ -78,15 +117,15 @@ public class JsonDereferencer
 		this(f.toURI().toURL());
 	}
 
-	JsonDereferencer(Reader r, URL rootContext)
+	public JsonDereferencer(Reader r, URL rootContext)
 		throws JsonProcessingException, IOException
 	{
-		this(new ObjectMapper().readTree(r), rootContext);
+		this(ObjectMappers.json().readTree(r), rootContext);
 	}
 	JsonDereferencer(String s, URL rootContext)
 		throws JsonProcessingException, IOException
 	{
-		this(new ObjectMapper().readTree(s), rootContext);
+		this(ObjectMappers.json().readTree(s), rootContext);
 	}
 
 	
@@ -118,26 +157,380 @@ public class JsonDereferencer
 	public String dereferenceToString()
 		throws JsonProcessingException, IOException, URISyntaxException
 	{
-		ObjectMapper om = new ObjectMapper();
+		final StringWriter sw = new StringWriter();
+		dereferenceTo(sw);
+		return(sw.toString());
+	}
+
+	/**
+	 * Dereference the document and write the result straight to a writer, without building the
+	 * text in memory first.  The writer is flushed but not closed.
+	 *
+	 * @param out
+	 *          Destination of the dereferenced document.
+	 */
+	public void dereferenceTo( final Writer out )
+		throws JsonProcessingException, IOException, URISyntaxException
+	{
+		final JsonNode result = dereference();
+		if( this.canonicalOutput )
+		{
+			this.contentHash = CanonicalJsonWriter.write(result, out);
+			return;
+		}
+		write(ObjectMappers.json().getFactory().createGenerator(out), result);
+	}
 
-		om.enable(SerializationFeature.INDENT_OUTPUT);
-		ObjectWriter ow = om.writer().withDefaultPrettyPrinter();
+	/**
+	 * Dereference the document and write the result straight to an output stream as UTF-8.  The
+	 * stream is flushed but not closed.
+	 *
+	 * @param out
+	 *          Destination of the dereferenced document.
+	 */
+	public void dereferenceTo( final OutputStream out )
+		throws JsonProcessingException, IOException, URISyntaxException
+	{
+		final JsonNode result = dereference();
+		if( this.canonicalOutput )
+		{
+			this.contentHash = CanonicalJsonWriter.write(result, out);
+			return;
+		}
+		write(ObjectMappers.json().getFactory().createGenerator(out, JsonEncoding.UTF8), result);
+	}
 
-		return(ow.writeValueAsString(dereference()));
+	/**
+	 * Write the dereferenced document in canonical form (members sorted by name, numbers in their
+	 * shortest form) so that rebuilding unchanged sources produces byte identical output, and
+	 * compute the hash of the output while it is written.
+	 *
+	 * @param canonicalOutput
+	 *          true to write canonical output.
+	 * @see CanonicalJsonWriter
+	 * @see #getContentHash()
+	 */
+	public void setCanonicalOutput( boolean canonicalOutput )
+	{
+		this.canonicalOutput = canonicalOutput;
+	}
+
+	/**
+	 * @return The SHA-256 hash (hexadecimal) of the UTF-8 text last written in canonical form by
+	 *         one of the dereferenceTo methods, or null if no canonical output has been written.
+	 */
+	public String getContentHash()
+	{
+		return this.contentHash;
+	}
+
+	private static void write( final JsonGenerator g, final JsonNode result )
+		throws IOException
+	{
+		g.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+		ObjectMappers.prettyWriter().writeValue(g, result);
+		g.close();
 	}
 		
 	public JsonNode dereference()
 		throws JsonProcessingException, IOException, URISyntaxException
 	{
-		return dereference(this.rootNode, this.rootContext);
+		if( this.prefetchThreads > 0 )
+		{
+			new DocumentPrefetcher(this.dependencies, this.prefetchThreads, this.sourceDirectory, this.maxDocuments).prefetch(this.rootNode, this.rootContext);
+		}
+		this.nodeCount.set(0);
+		final DereferenceMetrics m = this.metrics;
+		final long start = m == null ? 0 : System.nanoTime();
+		try
+		{
+			final JsonNode result;
+			if( this.parallelism > 1 && ! this.dereferenceLocalRefs && ! requiresSerialWalk(this.rootNode, true) )
+			{
+				result = dereferenceParallel();
+			}
+			else
+			{
+				result = dereference(this.rootNode, this.rootContext, null, new Walk(false, null));
+			}
+			walkLocalizedNodes();
+			return result;
+		}
+		finally
+		{
+			// only the walk copies shared nodes before changing them
+			this.sharedNodes.clear();
+			this.localizedNodes.clear();
+			if( m != null )
+			{
+				m.dereferenced(System.nanoTime() - start);
+			}
+		}
+	}
+
+	/**
+	 * Limit how many references may be resolved inside each other.  A chain of references that
+	 * loops back to a fragment it is already resolving is always reported as a circular reference;
+	 * this limit stops chains that are merely very long.
+	 *
+	 * @param maxResolutionDepth
+	 *          Maximum number of nested resolutions, zero or less for no limit.
+	 */
+	public void setMaxResolutionDepth( int maxResolutionDepth )
+	{
+		this.maxResolutionDepth = maxResolutionDepth;
+	}
+
+	/**
+	 * Limit the number of distinct documents the root may reference, directly or indirectly.  With
+	 * a prefetch ({@link #setPrefetchThreads(int)}) the limit is checked as documents are queued, so
+	 * no document beyond it is fetched; the prefetch counts every document reachable from the
+	 * referenced documents, including ones the walk would not need.
+	 *
+	 * @param maxDocuments
+	 *          Maximum number of referenced documents, zero or less for no limit.
+	 */
+	public void setMaxDocuments( int maxDocuments )
+	{
+		this.maxDocuments = maxDocuments;
+	}
+
+	/**
+	 * Limit the total number of JSON nodes visited by the walk, counting the nodes of every resolved
+	 * fragment.  The count is checked in batches of {@value #NODE_COUNT_BATCH} nodes.
+	 *
+	 * @param maxNodes
+	 *          Maximum number of visited nodes, zero or less for no limit.
+	 */
+	public void setMaxNodes( long maxNodes )
+	{
+		this.maxNodes = maxNodes;
 	}
 
-	private JsonNode dereference( JsonNode o, URL context )
+	/**
+	 * Walk the root document on a fork/join pool.  The top level members of the root are walked one
+	 * after the other; below them every object or array of the root document with at least
+	 * {@value #FORK_THRESHOLD} members has its members dereferenced as separate tasks.  Fragments of
+	 * external documents are still resolved one at a time, each exactly once, and every task
+	 * receives its own copy of them.  Entries copied into the root document by localization are
+	 * recorded by the tasks and added in the order a serial walk would have added them once the
+	 * walk of the top level member that caused them has finished, so the result is the same as the
+	 * result of a serial walk.
+	 */
+	private JsonNode dereferenceParallel()
 		throws JsonProcessingException, IOException, URISyntaxException
 	{
-		return dereference(o, context, null);
+		LOGGER.debug("Dereferencing with a parallelism of {}", this.parallelism);
+		final ForkJoinPool pool = new ForkJoinPool(this.parallelism);
+		try
+		{
+			final SubtreeTask root = new SubtreeTask(this.rootNode, this.rootContext, this.rootNode, null);
+			pool.invoke(root);
+			final JsonNode result = root.getResult();
+			applyLocalizations(root.walk);
+			return result;
+		}
+		finally
+		{
+			pool.shutdown();
+		}
 	}
-	
+
+	/**
+	 * Check whether the root document uses a feature that reads or reconfigures the root document
+	 * while it is being walked: inlined local references, local references in a reference array,
+	 * or aliases and global flags below the top level.  Such documents are always walked serially.
+	 */
+	private static boolean requiresSerialWalk( final JsonNode node, final boolean topLevel )
+	{
+		if( node.isObject() )
+		{
+			if( node.has("$refInline") || node.has("$refGlobalInline") )
+			{
+				return true;
+			}
+			if( ! topLevel && ( node.has("$refAliases") || node.has("$refGlobalIncludedRefPostfix") ) )
+			{
+				return true;
+			}
+			final JsonNode ref = node.get("$ref");
+			if( ref != null && ref.isArray() )
+			{
+				for( JsonNode r : ref )
+				{
+					if( r.asText().startsWith("#") )
+					{
+						return true;
+					}
+				}
+			}
+		}
+		for( JsonNode child : node )
+		{
+			if( requiresSerialWalk(child, false) )
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Record the reference resolution steps into a bounded trace buffer.  Unlike debug logging the
+	 * trace never formats JSON subtrees, so it can stay enabled on large documents.
+	 *
+	 * @param trace
+	 *          The buffer receiving the events or null to disable tracing.
+	 */
+	public void setTrace( final ResolutionTrace trace )
+	{
+		this.trace = trace;
+	}
+
+	public ResolutionTrace getTrace()
+	{
+		return this.trace;
+	}
+
+	/**
+	 * Count the documents loaded, cache hits, references resolved, merges and nesting depth of the
+	 * dereference.  Without metrics (the default) none of this is measured.
+	 *
+	 * @param metrics
+	 *          The metrics receiving the counts or null to disable them.
+	 */
+	public void setMetrics( final DereferenceMetrics metrics )
+	{
+		this.metrics = metrics;
+		this.dependencies.setMetrics(metrics);
+	}
+
+	public DereferenceMetrics getMetrics()
+	{
+		return this.metrics;
+	}
+
+	private void trace( final ResolutionTrace.Kind kind, final URL location, final String pointer, final String detail )
+	{
+		final ResolutionTrace t = this.trace;
+		if( t != null )
+		{
+			t.record(kind, location, pointer, detail);
+		}
+	}
+
+	private void count( final DereferenceMetrics.ReferenceKind kind )
+	{
+		final DereferenceMetrics m = this.metrics;
+		if( m != null )
+		{
+			m.referenceResolved(kind);
+		}
+	}
+
+	private void countFragment( final boolean cached )
+	{
+		final DereferenceMetrics m = this.metrics;
+		if( m != null )
+		{
+			m.fragmentCache(cached);
+		}
+	}
+
+	/**
+	 * Set the number of threads used to walk the root document.  Values of zero or one (the
+	 * default) walk the document serially.  Documents using $refInline, $refGlobalInline or local
+	 * entries in a $ref array are always walked serially.  A parallel walk hands every reference its
+	 * own copy of a resolved external fragment, as with {@link #setShareResolvedFragments(boolean)}
+	 * set to false.
+	 *
+	 * @param parallelism
+	 *          Number of threads walking the document.
+	 */
+	public void setParallelism( int parallelism )
+	{
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Set the number of threads used to load the externally referenced documents before the
+	 * dereference walk starts.  The root document, and transitively every document it pulls in, is
+	 * scanned for references and the documents are loaded and parsed concurrently so the walk only
+	 * finds documents that are already cached.  Zero (the default) disables the prefetch.
+	 *
+	 * @param prefetchThreads
+	 *          Maximum number of documents loaded at the same time.
+	 */
+	public void setPrefetchThreads( int prefetchThreads )
+	{
+		this.prefetchThreads = prefetchThreads;
+	}
+
+	/**
+	 * Take the referenced documents from copies of the documents in a shared cache instead of
+	 * parsing them.  Used by {@link DereferenceSession} to share one parse of every document between
+	 * many roots.
+	 */
+	void setSharedDocuments( final DocumentCache shared )
+	{
+		this.dependencies = new DocumentCache(shared);
+		this.dependencies.setMetrics(this.metrics);
+	}
+
+	/**
+	 * Set a directory in which the parsed form of the referenced "file:" documents is kept between
+	 * runs.  Documents whose size and modification time have not changed are then read from the
+	 * binary cache entry instead of being parsed again.  Remote documents are kept with their
+	 * validators and only transferred again when the {@link DocumentLoader} finds they changed.
+	 *
+	 * @param cacheDirectory
+	 *          The cache directory (created when needed) or null to disable the cache.
+	 */
+	public void setCacheDirectory( File cacheDirectory )
+	{
+		this.dependencies.setPersistentCache(cacheDirectory == null ? null : new PersistentDocumentCache(cacheDirectory));
+	}
+
+	/**
+	 * Set the loader of the referenced documents that are not local files.  The default is
+	 * {@link HttpDocumentLoader#getDefault()}, which loads "http:" and "https:" documents with
+	 * timeouts and a per host limit.
+	 *
+	 * @param loader
+	 *          The document loader.
+	 */
+	public void setDocumentLoader( DocumentLoader loader )
+	{
+		this.dependencies.setLoader(loader);
+	}
+
+	/**
+	 * Set the directory that references without a scheme ("common.json#/definitions/Id") are
+	 * relative to.  The default is the "src" directory of the working directory.
+	 *
+	 * @param sourceDirectory
+	 *          The source directory.
+	 */
+	public void setSourceDirectory( File sourceDirectory )
+	{
+		this.sourceDirectory = sourceDirectory;
+	}
+
+	/**
+	 * Parse the referenced documents lazily.  A referenced local file is scanned once and only the
+	 * definitions (members of its top level objects) that are actually used, directly or through
+	 * local references of the used ones, are parsed into trees.  This saves time and memory when
+	 * a root uses a few definitions of a large library.  The prefetch and the persistent cache of
+	 * {@link #setCacheDirectory(File)} need whole documents and lose most of the benefit.
+	 *
+	 * @param lazyDocuments
+	 *          true to parse referenced documents lazily.
+	 */
+	public void setLazyDocuments( boolean lazyDocuments )
+	{
+		this.dependencies.setLazy(lazyDocuments);
+	}
+
 	private void setAliases( JsonNode aliasObject, JsonNode currentDocument )
 	{
 		if( aliasObject == null )
@@ -161,11 +554,11 @@ public class JsonDereferencer
 			JsonNode valueNode = e.getValue();
 			if( ! valueNode.isValueNode() )
 			{
-				LOGGER.error("refAlias for key=" + key + " is not a text value");
+				LOGGER.error("refAlias for key={} is not a text value", key);
 				continue;
 			}
 			String value = valueNode.asText();
-			LOGGER.debug("Setting refAliases key=" + key + " value=" + value );
+			LOGGER.debug("Setting refAliases key={} value={}", key, value);
 			Map<String,String> documentAliases = refAliases.get(currentDocument);
 			if( documentAliases == null )
 			{
@@ -175,16 +568,30 @@ public class JsonDereferencer
 			documentAliases.put( key, value );
 		}
 	}
-	private JsonNode dereference( JsonNode o, URL context, JsonNode currentDocument )
+	private JsonNode dereference( JsonNode o, URL context, JsonNode currentDocument, final Walk walk )
 		throws JsonProcessingException, IOException, URISyntaxException
 	{
 		if( currentDocument == null ) 
 		{
 			currentDocument = this.rootNode;
 		}
+		if( ++walk.uncountedNodes >= NODE_COUNT_BATCH )
+		{
+			countNodes(walk);
+		}
 		if( o instanceof ObjectNode )
 		{
 			ObjectNode jo = (ObjectNode)o;
+			// a shared object is only copied once it has to change; objects with directives always do
+			final boolean inheritedShared = walk.inShared;
+			final boolean shared = inheritedShared || isShared(jo);
+			boolean copyOnWrite = shared;
+			if( shared && hasDirectives(jo) )
+			{
+				jo = (ObjectNode)copyShared(jo);
+				o = jo;
+				copyOnWrite = false;
+			}
 
 			setAliases( jo.remove("$refAliases"), currentDocument );
 			
@@ -197,23 +604,89 @@ public class JsonDereferencer
 			  this.refGlobalIncludedRefPostfix = refGlobalIncludedRefPostfix.asBoolean();
 			}
 			
-			// first iterate through each item and dereference it
-			for( String key : getFieldNamesSet(jo) )
+			// first iterate through each item and dereference it.  The members are copied to a
+			// buffer of the walk since localization may add members to this object during the walk.
+			final Object[] members = walk.enterObject(jo.size());
+			int memberSlots = 0;
+			walk.inShared = shared;
+			try
 			{
-				JsonNode valueObject = jo.get(key);
-				LOGGER.debug( "Processing node for dereference: " + key + ":" + valueObject );
-				JsonNode d = dereference(valueObject, context, currentDocument);
-				if( valueObject != d )
+				for( Iterator<Map.Entry<String,JsonNode>> i = jo.fields() ; i.hasNext() ; )
+				{
+					final Map.Entry<String,JsonNode> e = i.next();
+					members[memberSlots++] = e.getKey();
+					members[memberSlots++] = e.getValue();
+				}
+				if( walk.isParallel() && o == this.rootNode )
 				{
-				  jo.replace(key, d);
+					for( int m = 0 ; m < memberSlots ; m += 2 )
+					{
+						final JsonNode valueObject = (JsonNode)members[m + 1];
+						final Walk memberWalk = new Walk(true, walk.frame);
+						JsonNode d = dereference(valueObject, context, currentDocument, memberWalk);
+						if( valueObject != d )
+						{
+						  jo.replace((String)members[m], d);
+						}
+						applyLocalizations(memberWalk);
+						countNodes(memberWalk);
+					}
+				}
+				else if( walk.isParallel() && currentDocument == this.rootNode && memberSlots / 2 >= FORK_THRESHOLD )
+				{
+					final List<JsonNode> values = new ArrayList<JsonNode>(memberSlots / 2);
+					for( int m = 0 ; m < memberSlots ; m += 2 )
+					{
+						values.add((JsonNode)members[m + 1]);
+					}
+					final List<JsonNode> results = dereferenceForked(values, context, currentDocument, walk);
+					for( int m = 0 ; m < memberSlots ; m += 2 )
+					{
+						JsonNode d = results.get(m / 2);
+						if( members[m + 1] != d )
+						{
+						  if( copyOnWrite )
+						  {
+						    jo = (ObjectNode)copyShared(jo);
+						    o = jo;
+						    copyOnWrite = false;
+						  }
+						  jo.replace((String)members[m], d);
+						}
+					}
+				}
+				else
+				{
+					for( int m = 0 ; m < memberSlots ; m += 2 )
+					{
+						final String key = (String)members[m];
+						final JsonNode valueObject = (JsonNode)members[m + 1];
+						LOGGER.debug("Processing node for dereference: {}:{}", key, valueObject);
+						JsonNode d = dereference(valueObject, context, currentDocument, walk);
+						if( valueObject != d )
+						{
+						  if( copyOnWrite )
+						  {
+						    jo = (ObjectNode)copyShared(jo);
+						    o = jo;
+						    copyOnWrite = false;
+						  }
+						  jo.replace(key, d);
+						}
+					}
 				}
 			}
+			finally
+			{
+				walk.inShared = inheritedShared;
+				walk.exitObject(memberSlots);
+			}
 			
 			// then check if we have a reference here that we need to handle
 			JsonNode ref = jo.get("$ref");
 			JsonNode refIgnore = jo.remove("$refIgnore");
 			JsonNode refInline = jo.remove("$refInline");
-			LOGGER.debug("Checking for reference.  ref=" + ref + " / refIgnore=" + refIgnore );
+			LOGGER.debug("Checking for reference.  ref={} / refIgnore={}", ref, refIgnore);
 			if( ref != null && refIgnore == null )
 			{
 				List<String> refs;
@@ -221,7 +694,7 @@ public class JsonDereferencer
 				// Get the traditional single reference
 				if( ref.isTextual() )
 				{
-					LOGGER.debug("Reference is a single value of " + ref.asText());
+					LOGGER.debug("Reference is a single value of {}", ref.asText());
 					refs = new ArrayList<String>();
 					refs.add(ref.asText());
 				}
@@ -229,7 +702,7 @@ public class JsonDereferencer
 				else if( ref.isArray() )
 				{
 					refs = getStringList(ref);
-					LOGGER.debug("Reference is an array " + refs );
+					LOGGER.debug("Reference is an array {}", refs);
 					if( refs == null )
 					{
 						return(o);
@@ -238,17 +711,18 @@ public class JsonDereferencer
 				else
 				{
 					// If refs is not defined
-					LOGGER.warn("Found a ref entry, but the value wasn't valid: " + o);
+					LOGGER.warn("Found a ref entry, but the value wasn't valid: {}", o);
 					return o;
 				}
 				
 				// Begin Processing the references
 				for(String refHref : refs)
 				{
-					LOGGER.debug("Processing reference for " + refHref);
+					LOGGER.debug("Processing reference for {}", refHref);
+					trace(ResolutionTrace.Kind.REFERENCE, context, null, refHref);
 					if( refHref == null ) 
 					{
-						LOGGER.error("$ref returned as null (" + o.toString() + ").  Ref left intact.");
+						LOGGER.error("$ref returned as null ({}).  Ref left intact.", o);
 						return o;
 					}
 					if( refHref.startsWith("#") )
@@ -257,7 +731,8 @@ public class JsonDereferencer
 						if( currentDocument != null && currentDocument != this.rootNode && refHref.length() > 2 && ! this.refGlobalInline )
 						{
 							LOGGER.debug("Local reference is being imported into the root document");
-							jo.put("$ref", addLocalReference( context, currentDocument, refHref.substring(1) ));
+							jo.put("$ref", localReference( walk, context, currentDocument, refHref.substring(1) ));
+							count(DereferenceMetrics.ReferenceKind.LOCALIZED);
 							return o;
 						}
 						if( refs.size() == 1 && ! dereferenceLocalRefs && refInline == null && ! this.refGlobalInline )
@@ -270,8 +745,10 @@ public class JsonDereferencer
 					// Remove the reference control variables from the resulting JSON document
 					jo.remove("$ref");
 					
+					DereferenceMetrics.ReferenceKind kind = refHref.startsWith("#") ? DereferenceMetrics.ReferenceKind.LOCAL : DereferenceMetrics.ReferenceKind.REMOTE;
 					if( refHref.startsWith("@") )
 					{
+						kind = DereferenceMetrics.ReferenceKind.ALIAS;
 						int pointerIndex = refHref.indexOf("#");
 						if( pointerIndex > 0 )
 						{
@@ -284,32 +761,32 @@ public class JsonDereferencer
 							}
 							if( aliasValue == null )
 							{
-								LOGGER.error("Reference alias \"" + refHref + "\" specified, but corresponding alias value not found." );
+								LOGGER.error("Reference alias \"{}\" specified, but corresponding alias value not found.", refHref);
 							}
 							else
 							{
-								LOGGER.debug("Replacing refHref alias old value=" + refHref);
+								LOGGER.debug("Replacing refHref alias old value={}", refHref);
 								refHref = aliasValue + refHref.substring(pointerIndex);
-								LOGGER.debug("Replacing refHref alias new value=" + refHref);
+								LOGGER.debug("Replacing refHref alias new value={}", refHref);
 							}
 						}
 						else
 						{
-							LOGGER.error("Invalid reference alias: " + refHref);
+							LOGGER.error("Invalid reference alias: {}", refHref);
 						}
 					}
 					// remove the refDeep control variable.
 					// Variable set: the system will merge all JSON objects and their descendants
 					// Variable unset: the system will merge only the JSON name/value pair within the ref
 					JsonNode refDeep = jo.remove("$refDeep");
-					LOGGER.debug("refDeep: " + refDeep);
+					LOGGER.debug("refDeep: {}", refDeep);
 					
 					
 					// remove the refLocalize control variable.
 					// Variable set: the system will take this reference and localize it (doc local ref)
 					// Variable unset: the system will merge the reference in place
 					JsonNode refLocalize = jo.remove("$refLocalize");
-					LOGGER.debug("refLocalize: " + refLocalize);
+					LOGGER.debug("refLocalize: {}", refLocalize);
 					
 					URL loadLocation = null;
 					String fragment = null;
@@ -329,51 +806,60 @@ public class JsonDereferencer
 						// Reference is on a remote document
 						LOGGER.debug("Context={}, Href={}", context, refHref);
 						final URI loadLocationURI = new URI(refHref);
+						loadLocation = getLoadLocation(this.sourceDirectory, context, loadLocationURI);
 						if( loadLocationURI.getScheme() == null ) {
-							final File loadFile = new File("src", loadLocationURI.getPath());
-							loadLocation = loadFile.toURI().toURL();
 							fragment = loadLocationURI.getFragment();
-							
 						} else {
-							loadLocation = new URL(context, refHref );
 							fragment = loadLocation.toURI().getFragment();
 						}
-						LOGGER.debug("Reference load location is=" + loadLocation);
+						LOGGER.debug("Reference load location is={}", loadLocation);
+						checkDocumentLimit(loadLocation);
 						refJson = getJsonFromCache(loadLocation);
+						if( this.metrics != null )
+						{
+							this.metrics.documentCache(refJson != null);
+						}
 						if( refJson == null )
 						{
 							LOGGER.debug("Reference root JSON document loaded from source.");
-							refJson = new ObjectMapper().readTree(loadLocation);
-							this.dependencies.put(loadLocation, refJson);
+							refJson = this.dependencies.load(loadLocation);
+							trace(ResolutionTrace.Kind.DOCUMENT_LOADED, loadLocation, null, null);
 						}
 						else
 						{
 							LOGGER.debug("Reference root JSON document loaded from cache.");
 						}
+						recordReference(loadLocation, fragment, refJson);
 					}
 
 					if( fragment != null && fragment.length() > 0 )
 					{
-						JsonNode refFragment = refJson.at(fragment);
+						JsonNode refFragment = resolveFragment(refJson, fragment, loadLocation, refDeep != null, refLocalize != null, walk);
 
 						if( refFragment != null && ! refFragment.isMissingNode() )
 						{
-							refFragment = dereference(refFragment, loadLocation, refJson);
 							if( refLocalize != null )
 							{
 								LOGGER.debug("Local reference is being created.");
 								// 	TODO: review the addLocalRefernce and make sure it will work when passed a fragment
-								final String newFragment = addLocalReference( context, refJson, fragment );
+								final String newFragment = localReference( walk, context, refJson, fragment );
 								jo.removeAll();
 								jo.put("$ref", newFragment);
+								count(DereferenceMetrics.ReferenceKind.LOCALIZED);
 								return o;
 							}
 						}
 
-						LOGGER.debug("JSON Fragment pointer=" + fragment);
+						LOGGER.debug("JSON Fragment pointer={}", fragment);
 						refJson = refFragment;
-						LOGGER.trace("JSON Fragment=" + refJson);
+						LOGGER.trace("JSON Fragment={}", refJson);
 					}
+					else if( walk.isParallel() && refJson != this.rootNode )
+					{
+						// the whole document is referenced, the task needs its own copy of it
+						refJson = copyResolved(refJson);
+					}
+					count(kind);
 										
 					if( jo.size() == 0 || refJson.isValueNode() || refJson.isArray() )
 					{
@@ -382,56 +868,373 @@ public class JsonDereferencer
 					}
 					if( ! ( refJson instanceof ObjectNode ) )
 					{
-					  LOGGER.error("Unable to properly resolve reference " + refHref );
+					  LOGGER.error("Unable to properly resolve reference {}", refHref);
 					  throw new IOException("Unable to properly resolve reference " + refHref);
 					}
+					final long mergeStart = this.metrics == null ? 0 : System.nanoTime();
 					if( refDeep != null )
 					{
 						LOGGER.debug("Merging the ref deep");
+						trace(ResolutionTrace.Kind.MERGED, context, null, "deep");
 						merge(jo, (ObjectNode)refJson, true);
 					}
 					else
 					{
 						LOGGER.debug("Merging the ref shallow");
+						trace(ResolutionTrace.Kind.MERGED, context, null, "shallow");
 						merge(jo, (ObjectNode)refJson, false);
 					}
+					if( this.metrics != null )
+					{
+						this.metrics.merged(refDeep != null, System.nanoTime() - mergeStart);
+					}
 				}	
 			}
 		}
 		else if( o instanceof ArrayNode )
 		{
 			ArrayNode ja = (ArrayNode) o;
-			for( int i = 0 ; i < ja.size() ; i++ )
+			final boolean inheritedShared = walk.inShared;
+			boolean copyOnWrite = inheritedShared || isShared(ja);
+			walk.inShared = copyOnWrite;
+			List<JsonNode> forked = null;
+			if( walk.isParallel() && currentDocument == this.rootNode && ja.size() >= FORK_THRESHOLD )
 			{
-				JsonNode t = ja.get(i); 
-				JsonNode d = dereference(t, context, currentDocument);
-				if( t != d )
+				final List<JsonNode> elements = new ArrayList<JsonNode>(ja.size());
+				for( JsonNode t : ja )
 				{
-					LOGGER.debug("Replacing the ref in the array at position " + i );
-					LOGGER.debug("Old value=" + t);
-					LOGGER.debug("New value=" + d);
-					
-					ja.remove(i);
-					ja.insert(i, d);
+					elements.add(t);
 				}
+				forked = dereferenceForked(elements, context, currentDocument, walk);
+			}
+			try
+			{
+				for( int i = 0 ; i < ja.size() ; i++ )
+				{
+					JsonNode t = ja.get(i); 
+					JsonNode d = forked == null ? dereference(t, context, currentDocument, walk) : forked.get(i);
+					if( t != d )
+					{
+						if( LOGGER.isDebugEnabled() )
+						{
+							LOGGER.debug("Replacing the ref in the array at position {}", i);
+							LOGGER.debug("Old value={}", t);
+							LOGGER.debug("New value={}", d);
+						}
+						if( copyOnWrite )
+						{
+							ja = (ArrayNode)copyShared(ja);
+							o = ja;
+							copyOnWrite = false;
+						}
+						ja.set(i, d);
+					}
+				}
+			}
+			finally
+			{
+				walk.inShared = inheritedShared;
 			}
 		}
 		LOGGER.debug("Returning the final resultant object" );
 		return(o);
 	}
 	
-	private Set<String> getFieldNamesSet( final ObjectNode objectNode )
+	/**
+	 * Fail before loading a document that would exceed the limit of referenced documents.
+	 */
+	private synchronized void checkDocumentLimit( final URL loadLocation )
+		throws IOException
 	{
-	  final Set<String> returnValue = new HashSet<>();
-	  if (objectNode != null) {
-      for (Iterator<String> i = objectNode.fieldNames(); i.hasNext();) {
-        returnValue.add(i.next());
-      } 
-    }
-    return returnValue;
+		if( this.maxDocuments > 0 && this.referencedDocuments.size() >= this.maxDocuments
+			&& ! this.referencedDocuments.containsKey(DocumentCache.key(loadLocation)) )
+		{
+			throw new IOException("Reference to " + loadLocation + " exceeds the limit of " + this.maxDocuments + " referenced documents");
+		}
 	}
-	
-	
+
+	/**
+	 * Remember that the document being dereferenced pulled in a fragment of another document.  The
+	 * state recorded is the one the document was in when it was read, not when it is referenced.
+	 */
+	private synchronized void recordReference( final URL loadLocation, final String fragment, final JsonNode document )
+		throws IOException
+	{
+		final String key = DocumentCache.key(loadLocation);
+		DependencyGraph.Dependency d = this.referencedDocuments.get(key);
+		if( d == null )
+		{
+			checkDocumentLimit(loadLocation);
+			final DependencyGraph.Dependency state = this.dependencies.getState(document);
+			d = state == null ? DependencyGraph.Dependency.forDocument(loadLocation) : state.withoutFragments();
+			this.referencedDocuments.put(key, d);
+		}
+		d.addFragment(fragment);
+	}
+
+	/**
+	 * Add the nodes a walk visited since the last call to the total and check the node budget.
+	 */
+	private void countNodes( final Walk walk )
+		throws IOException
+	{
+		final long total = this.nodeCount.addAndGet(walk.uncountedNodes);
+		walk.uncountedNodes = 0;
+		if( this.maxNodes > 0 && total > this.maxNodes )
+		{
+			throw new IOException("Dereference exceeded the limit of " + this.maxNodes + " visited nodes");
+		}
+	}
+
+	/**
+	 * Push a fragment onto the resolution stack of a walk, failing if the fragment is already being
+	 * resolved further up the stack or if the stack gets too deep.
+	 *
+	 * @return The previous top of the stack, to be restored once the fragment is resolved.
+	 */
+	private ResolutionFrame enterResolution( final Walk walk, final JsonNode document, final String pointer )
+		throws IOException
+	{
+		final ResolutionFrame previous = walk.frame;
+		final ResolutionFrame frame = new ResolutionFrame(document, pointer, previous);
+		for( ResolutionFrame f = previous ; f != null ; f = f.parent )
+		{
+			if( f.document == document && f.pointer.equals(pointer) )
+			{
+				throw new IOException("Circular reference: " + describeResolution(frame));
+			}
+		}
+		if( this.maxResolutionDepth > 0 && frame.depth > this.maxResolutionDepth )
+		{
+			throw new IOException("References nested deeper than " + this.maxResolutionDepth + ": " + describeResolution(frame));
+		}
+		if( this.metrics != null )
+		{
+			this.metrics.resolutionDepth(frame.depth);
+		}
+		walk.frame = frame;
+		return previous;
+	}
+
+	private String describeResolution( final ResolutionFrame frame )
+	{
+		final List<String> entries = new ArrayList<String>();
+		for( ResolutionFrame f = frame ; f != null ; f = f.parent )
+		{
+			URL u = f.document == this.rootNode ? this.rootContext : this.dependencies.getUrl(f.document);
+			String location = u == null ? "<root document>" : u.toExternalForm();
+			if( location.indexOf('#') >= 0 )
+			{
+				location = location.substring(0, location.indexOf('#'));
+			}
+			entries.add(location + "#" + f.pointer);
+		}
+		Collections.reverse(entries);
+		return StringUtils.join(entries, " -> ");
+	}
+
+	/**
+	 * Get every document (and the fragments of it) that the last dereference of this document
+	 * referenced, directly or through other documents.
+	 *
+	 * @return The referenced documents in the order they were first referenced.
+	 */
+	public synchronized Collection<DependencyGraph.Dependency> getReferencedDocuments()
+	{
+		return new ArrayList<DependencyGraph.Dependency>(this.referencedDocuments.values());
+	}
+
+	/**
+	 * Work out where the document named by an external reference is loaded from.  References
+	 * without a scheme are taken relative to the source directory, all others relative to the
+	 * context of the document containing the reference.
+	 */
+	static URL getLoadLocation( final File sourceDirectory, final URL context, final URI refUri )
+		throws MalformedURLException
+	{
+		if( refUri.getScheme() == null )
+		{
+			return new File(sourceDirectory, refUri.getPath()).toURI().toURL();
+		}
+		return new URL(context, refUri.toString());
+	}
+
+	/**
+	 * Resolve the JSON pointer fragment of a referenced document and dereference the result.  For
+	 * external documents the resolved fragment is remembered so that every other reference to the
+	 * same target (with the same $refDeep/$refLocalize flags) reuses it instead of walking it again.
+	 * Fragments of the root document are always resolved fresh since the root is rewritten during
+	 * the walk.
+	 */
+	private JsonNode resolveFragment( final JsonNode refJson, final String fragment, final URL loadLocation, final boolean refDeep, final boolean refLocalize, final Walk walk )
+		throws JsonProcessingException, IOException, URISyntaxException
+	{
+		if( refJson == this.rootNode )
+		{
+			final JsonNode refFragment = refJson.at(pointer(fragment));
+			if( refFragment == null || refFragment.isMissingNode() )
+			{
+				return refFragment;
+			}
+			final ResolutionFrame previous = enterResolution(walk, refJson, fragment);
+			try
+			{
+				return dereference(refFragment, loadLocation, refJson, walk);
+			}
+			finally
+			{
+				walk.frame = previous;
+			}
+		}
+		final FragmentKey key = new FragmentKey(refJson, fragment, refDeep, refLocalize);
+		if( walk.isParallel() )
+		{
+			return resolveSharedFragment(key, loadLocation, walk);
+		}
+		ResolvedFragment resolved = this.resolvedFragments.get(key);
+		if( resolved != null )
+		{
+			LOGGER.debug("Resolved fragment {} taken from cache.", fragment);
+			trace(ResolutionTrace.Kind.FRAGMENT_CACHED, loadLocation, fragment, null);
+			countFragment(true);
+		}
+		else
+		{
+			final JsonNode refFragment = refJson.at(pointer(fragment));
+			if( refFragment == null || refFragment.isMissingNode() )
+			{
+				return refFragment;
+			}
+			trace(ResolutionTrace.Kind.FRAGMENT_RESOLVED, loadLocation, fragment, null);
+			countFragment(false);
+			final ResolutionFrame previous = enterResolution(walk, refJson, fragment);
+			try
+			{
+				resolved = new ResolvedFragment(dereference(refFragment, loadLocation, refJson, walk), null);
+			}
+			finally
+			{
+				walk.frame = previous;
+			}
+			this.resolvedFragments.put(key, resolved);
+		}
+		if( this.shareResolvedFragments )
+		{
+			share(resolved.node);
+			return resolved.node;
+		}
+		return resolved.node.deepCopy();
+	}
+
+	/**
+	 * Resolve a fragment of an external document during a parallel walk.  External documents are
+	 * rewritten in place while their fragments are resolved, so resolutions hold the write lock and
+	 * tasks only copy resolved fragments while holding the read lock.  The localizations caused by
+	 * the resolution are kept with it and handed to every walk that uses the fragment.
+	 */
+	private JsonNode resolveSharedFragment( final FragmentKey key, final URL loadLocation, final Walk walk )
+		throws JsonProcessingException, IOException, URISyntaxException
+	{
+		this.resolutionLock.readLock().lock();
+		try
+		{
+			final ResolvedFragment resolved = this.resolvedFragments.get(key);
+			if( resolved != null )
+			{
+				LOGGER.debug("Resolved fragment {} taken from cache.", key.pointer);
+				trace(ResolutionTrace.Kind.FRAGMENT_CACHED, loadLocation, key.pointer, null);
+				countFragment(true);
+				walk.addAll(resolved.localizations);
+				return resolved.node.deepCopy();
+			}
+		}
+		finally
+		{
+			this.resolutionLock.readLock().unlock();
+		}
+		this.resolutionLock.writeLock().lock();
+		try
+		{
+			ResolvedFragment resolved = this.resolvedFragments.get(key);
+			if( resolved == null )
+			{
+				final JsonNode refFragment = key.document.at(pointer(key.pointer));
+				if( refFragment == null || refFragment.isMissingNode() )
+				{
+					return refFragment;
+				}
+				trace(ResolutionTrace.Kind.FRAGMENT_RESOLVED, loadLocation, key.pointer, null);
+				countFragment(false);
+				final Walk resolution = new Walk(true, walk.frame);
+				enterResolution(resolution, key.document, key.pointer);
+				resolved = new ResolvedFragment(dereference(refFragment, loadLocation, key.document, resolution), resolution.localizations);
+				countNodes(resolution);
+				this.resolvedFragments.put(key, resolved);
+			}
+			walk.addAll(resolved.localizations);
+			return resolved.node.deepCopy();
+		}
+		finally
+		{
+			this.resolutionLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Copy a node of an external document for a task of a parallel walk.
+	 */
+	private JsonNode copyResolved( final JsonNode node )
+	{
+		this.resolutionLock.readLock().lock();
+		try
+		{
+			return node.deepCopy();
+		}
+		finally
+		{
+			this.resolutionLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Dereference sibling nodes of the root document as separate fork/join tasks.  The results and
+	 * the localizations of the tasks are collected in sibling order; the first failure in that order
+	 * is rethrown.
+	 */
+	private List<JsonNode> dereferenceForked( final List<JsonNode> nodes, final URL context, final JsonNode currentDocument, final Walk walk )
+		throws JsonProcessingException, IOException, URISyntaxException
+	{
+		final List<SubtreeTask> tasks = new ArrayList<SubtreeTask>(nodes.size());
+		for( JsonNode n : nodes )
+		{
+			final SubtreeTask t = new SubtreeTask(n, context, currentDocument, walk.frame);
+			t.walk.inShared = walk.inShared;
+			tasks.add(t);
+		}
+		ForkJoinTask.invokeAll(tasks);
+		final List<JsonNode> results = new ArrayList<JsonNode>(nodes.size());
+		for( SubtreeTask t : tasks )
+		{
+			results.add(t.getResult());
+			walk.addAll(t.walk.localizations);
+		}
+		return results;
+	}
+
+	/**
+	 * Control whether a fragment resolved from an external document is shared by every reference
+	 * to it (the default) or whether each reference receives its own deep copy.  Shared fragments
+	 * are copied one container at a time when a merge or the walk has to change them, so sharing
+	 * keeps memory proportional to the distinct content without merges leaking into other uses.
+	 *
+	 * @param shareResolvedFragments
+	 *          true to share resolved fragments, false to hand out defensive copies.
+	 */
+	public void setShareResolvedFragments( boolean shareResolvedFragments )
+	{
+		this.shareResolvedFragments = shareResolvedFragments;
+	}
+
 	private ObjectNode merge(ObjectNode target, ObjectNode source, boolean mergeDeep )
 	{
 		List<String> refIncludes = getStringList(target.remove("$refIncludes"));
@@ -465,12 +1268,12 @@ public class JsonDereferencer
 			}
 			if( refIncludes != null && ! refIncludes.contains(sourceAttributeName) )
 			{
-				LOGGER.debug("Ignoring object \"" + sourceAttributeName + "\" since it is NOT in the refIncludes." );
+				LOGGER.debug("Ignoring object \"{}\" since it is NOT in the refIncludes.", sourceAttributeName);
 				continue;
 			}
 			if( refExcludes != null && refExcludes.contains(sourceAttributeName))
 			{
-				LOGGER.debug("Ignoring object \"" + sourceAttributeName + "\" since it is in the refExcludes." );
+				LOGGER.debug("Ignoring object \"{}\" since it is in the refExcludes.", sourceAttributeName);
 				continue;
 			}
 			
@@ -483,8 +1286,8 @@ public class JsonDereferencer
 			{
 				if( target.get(sourceAttributeName) instanceof ObjectNode && e.getValue() instanceof ObjectNode && mergeDeep )
 				{
-					LOGGER.debug("Merging key " + sourceAttributeName  );
-					merge((ObjectNode)target.get(sourceAttributeName), (ObjectNode)e.getValue(), mergeDeep);
+					LOGGER.debug("Merging key {}", sourceAttributeName);
+					merge((ObjectNode)writableMember(target, sourceAttributeName), (ObjectNode)e.getValue(), mergeDeep);
 				}
 				else if( arrayProcessingDirectives != null && e.getValue().isArray() && target.get(sourceAttributeName).isArray() && arrayProcessingDirectives.get(sourceAttributeName) != null )
 				{
@@ -493,24 +1296,40 @@ public class JsonDereferencer
 						ArrayNode refArrayRemovePartialMatch = (ArrayNode)arrayProcessingDirectives.get(sourceAttributeName).get("$refArrayRemovePartialMatch");
 						JsonNode refSetMerge = arrayProcessingDirectives.get(sourceAttributeName).get("$refSetMerge");
 						ArrayNode sourceArray = (ArrayNode)e.getValue();
-						ArrayNode targetArray = (ArrayNode)target.get(sourceAttributeName);
+						ArrayNode targetArray = (ArrayNode)writableMember(target, sourceAttributeName);
+						PartialMatchIndex partialMatches = refArrayRemovePartialMatch == null ? null : new PartialMatchIndex(refArrayRemovePartialMatch);
+						Set<JsonNode> targetElements = null;
+						if( refSetMerge != null )
+						{
+							// JsonNode equality and hash codes are structural, so the set finds duplicates without scanning the target
+							targetElements = new HashSet<JsonNode>(Math.max(16, (targetArray.size() + sourceArray.size()) * 4 / 3 + 1));
+							for( JsonNode n : targetArray )
+							{
+								targetElements.add(n);
+							}
+						}
 						
 						for( int sourceIndex = 0 ; sourceIndex < sourceArray.size() ; sourceIndex++ )
 						{
-							if( refArrayRemovePartialMatch != null && isPartialObjectMatch(sourceArray.get(sourceIndex), refArrayRemovePartialMatch ) )
+							final JsonNode sourceElement = sourceArray.get(sourceIndex);
+							if( partialMatches != null && partialMatches.matches(sourceElement) )
 							{
-								LOGGER.debug("Removing object in Array merge at index " + sourceIndex);
+								if( LOGGER.isDebugEnabled() )
+								{
+									LOGGER.debug("Removing object in Array merge at index {}", sourceIndex);
+								}
 								continue;
 							}
-							if( refSetMerge != null )
+							if( targetElements != null && ! targetElements.add(sourceElement) )
 							{
-								if( targetContainsNode( targetArray, sourceArray.get(sourceIndex) ) )
+								if( LOGGER.isDebugEnabled() )
 								{
-									LOGGER.debug("Removing duplicate object in Array merge at index " + sourceIndex);
-									continue;
+									LOGGER.debug("Removing duplicate object in Array merge at index {}", sourceIndex);
 								}
+								continue;
 							}
-							targetArray.add(sourceArray.get(sourceIndex));
+							targetArray.add(sourceElement);
+							share(sourceElement);
 						}
 					}
 					catch( Exception e1 )
@@ -520,17 +1339,88 @@ public class JsonDereferencer
 				}
 				else
 				{
-					LOGGER.debug("Ignoring key \"" + sourceAttributeName + "\" because it already exists and we are performing a shallow merge.");
+					LOGGER.debug("Ignoring key \"{}\" because it already exists and we are performing a shallow merge.", sourceAttributeName);
 				}
 			}
 			else
 			{
-				LOGGER.debug("Adding key " + sourceAttributeName  );
+				LOGGER.debug("Adding key {}", sourceAttributeName);
 				target.set(sourceAttributeName, e.getValue());
+				share(e.getValue());
 			}
 		}
 		return(target);
 	}
+
+	/**
+	 * Get a member of an object for modification, replacing it with a copy first if it is shared.
+	 */
+	private JsonNode writableMember( final ObjectNode parent, final String name )
+	{
+		JsonNode member = parent.get(name);
+		if( isShared(member) )
+		{
+			member = copyShared(member);
+			parent.set(name, member);
+		}
+		return member;
+	}
+
+	/**
+	 * Mark a container as shared: it is referenced from more than one place (a resolved fragment, a
+	 * member merged from a referenced object or a library definition) and must not be modified.
+	 * Merges and the walk copy a shared container before they change it.
+	 */
+	private void share( final JsonNode node )
+	{
+		if( node != null && node.isContainerNode() )
+		{
+			this.sharedNodes.add(node);
+		}
+	}
+
+	private boolean isShared( final JsonNode node )
+	{
+		return node != null && this.sharedNodes.contains(node);
+	}
+
+	/**
+	 * Copy a shared container so it can be modified.  Only the container itself is copied, its
+	 * members stay shared with the original and are copied in turn when they have to change.
+	 */
+	private JsonNode copyShared( final JsonNode node )
+	{
+		final JsonNode copy;
+		if( node.isObject() )
+		{
+			final ObjectNode o = JsonNodeFactory.instance.objectNode();
+			o.setAll((ObjectNode)node);
+			copy = o;
+		}
+		else
+		{
+			final ArrayNode a = JsonNodeFactory.instance.arrayNode();
+			a.addAll((ArrayNode)node);
+			copy = a;
+		}
+		for( JsonNode member : copy )
+		{
+			share(member);
+		}
+		return copy;
+	}
+
+	private static boolean hasDirectives( final JsonNode node )
+	{
+		for( Iterator<String> i = node.fieldNames() ; i.hasNext() ; )
+		{
+			if( i.next().startsWith("$") )
+			{
+				return true;
+			}
+		}
+		return false;
+	}
 	
 	
 	private List<String> getStringList(JsonNode j)
@@ -541,7 +1431,7 @@ public class JsonDereferencer
 		}
 		if( ! j.isArray() )
 		{
-			LOGGER.error("Expected array value and instead got " + j.getClass().getName() );
+			LOGGER.error("Expected array value and instead got {}", j.getClass().getName());
 			return null;
 		}
 		List<String> r = new ArrayList<String>();
@@ -562,14 +1452,7 @@ public class JsonDereferencer
 		{
 			return null;
 		}
-		for( Map.Entry<URL, JsonNode> e : this.dependencies.entrySet() )
-		{
-			if( url.sameFile(e.getKey()))
-			{
-				return(e.getValue());
-			}
-		}
-		return null;
+		return this.dependencies.get(url);
 	}
 	
 	private void findAndAddLocalReferences( URL context,  JsonNode sourceDocument, JsonNode refJson )
@@ -608,38 +1491,112 @@ public class JsonDereferencer
 		}
 	}
 	
-	private String addLocalReference( final URL context,  final JsonNode sourceDocument, final String jsonPath )
+	/**
+	 * Localize a fragment into the root document, or record the localization when the walk defers
+	 * them, and return the local reference to the fragment.
+	 */
+	private String localReference( final Walk walk, final URL context, final JsonNode sourceDocument, final String jsonPath )
+	{
+		final String postFix = getLocalReferencePostFix(sourceDocument);
+		if( this.trace != null )
+		{
+			trace(ResolutionTrace.Kind.LOCALIZED, this.dependencies.getUrl(sourceDocument), jsonPath, postFix);
+		}
+		if( ! walk.isParallel() )
+		{
+			return addLocalReference( context, sourceDocument, jsonPath, postFix );
+		}
+		walk.localizations.add(new Localization(context, sourceDocument, jsonPath, postFix));
+		return "#" + jsonPath + postFix;
+	}
+
+	/**
+	 * Walk the fragments localized into the root document.  A fragment is copied into the root
+	 * document when it is localized, which may be before or after the walk resolved the references
+	 * of the fragment in its own document, and the member of the root document receiving it may
+	 * already have been walked; walking every localized fragment once the walk is done resolves
+	 * them all the same way, whatever the order of the walk.  Fragments localized by these walks
+	 * are walked in turn.
+	 */
+	private void walkLocalizedNodes()
+		throws JsonProcessingException, IOException, URISyntaxException
+	{
+		for( int i = 0 ; i < this.localizedNodes.size() ; i++ )
+		{
+			final LocalizedNode l = this.localizedNodes.get(i);
+			final JsonNode node = l.parent.get(l.name);
+			final Walk walk = new Walk(false, null);
+			final JsonNode d = dereference(node, l.context, this.rootNode, walk);
+			if( d != node )
+			{
+				l.parent.replace(l.name, d);
+			}
+			countNodes(walk);
+		}
+		this.localizedNodes.clear();
+	}
+
+	private void applyLocalizations( final Walk walk )
+	{
+		for( Localization l : walk.localizations )
+		{
+			addLocalReference( l.context, l.sourceDocument, l.jsonPath, l.postFix );
+		}
+		walk.localizations.clear();
+	}
+
+	private String getLocalReferencePostFix( final JsonNode sourceDocument )
 	{
-	  final String postFix;
 	  if( this.refGlobalIncludedRefPostfix ){
-	    postFix = getDocPostFix(sourceDocument);
-	  } else {
-	    postFix = "";
+	    return getDocPostFix(sourceDocument);
 	  }
-	  
+	  return "";
+	}
+
+	private String addLocalReference( final URL context,  final JsonNode sourceDocument, final String jsonPath )
+	{
+		return addLocalReference( context, sourceDocument, jsonPath, getLocalReferencePostFix(sourceDocument) );
+	}
+
+	private String addLocalReference( final URL context,  final JsonNode sourceDocument, final String jsonPath, final String postFix )
+	{
 		String fragment = "#" + jsonPath;
-		JsonNode refJson = sourceDocument.at(jsonPath);
+		final String localPath = jsonPath + postFix;
+		// a fragment referencing itself, directly or through others, is already being localized
+		if( this.localizedPaths.contains(localPath) || this.localizingPaths.contains(localPath) )
+		{
+			return fragment + postFix;
+		}
+		JsonNode refJson = sourceDocument.at(pointer(jsonPath));
 		// only attempt to add to the core document if the pointer exists in the target document
 		// the root node is an object and the node doesn't already exist in the target document
-		if( refJson != null && this.rootNode.isObject() && this.rootNode.at(jsonPath+postFix).isMissingNode() )
+		if( refJson != null && this.rootNode.isObject() && ! isInRoot(localPath) )
 		{
 			ObjectNode addPoint = (ObjectNode)this.rootNode;
 			
-			findAndAddLocalReferences( context, sourceDocument, refJson );
+			this.localizingPaths.add(localPath);
+			try
+			{
+				findAndAddLocalReferences( context, sourceDocument, refJson );
+			}
+			finally
+			{
+				this.localizingPaths.remove(localPath);
+			}
 			
-			StringBuffer jsonPathLocation = new StringBuffer();
+			// walk the source document one segment at a time alongside the root document
+			final PathSegments segments = pathSegments(jsonPath);
+			JsonNode current = sourceDocument;
 			
-			for( String nodeName : jsonPath.substring(1).split("/") )
+			for( int s = 0 ; s < segments.names.length ; s++ )
 			{
-				jsonPathLocation.append("/");
-				jsonPathLocation.append(nodeName);
-				
-				JsonNode current = sourceDocument.at(jsonPathLocation.toString());
+				final String nodeName = segments.names[s];
+				current = current.at(segments.steps[s]);
 				JsonNode target = addPoint.get(nodeName);
 				
 				if( current == null )
 				{
-					LOGGER.error("Unable to merge undefined reference " + context + fragment );
+					LOGGER.error("Unable to merge undefined reference {}{}", context, fragment);
 					break;
 				}
 				if( target != null )
@@ -657,19 +1614,20 @@ public class JsonDereferencer
 						}
 						else
 						{
-							LOGGER.error("Refusing to merge non object node types " + context + fragment );
+							LOGGER.error("Refusing to merge non object node types {}{}", context, fragment);
 							break;
 						}
 					}
 					else
 					{
-						LOGGER.error("Refusing to merge different reference types at pointer " + context + fragment );
+						LOGGER.error("Refusing to merge different reference types at pointer {}{}", context, fragment);
 						break;
 					}
 				}
 				if( current == refJson )
 				{
 					addPoint.set(nodeName + postFix, addExternalLibTag(jsonPath, sourceDocument, refJson));
+					addLocalizedNode(addPoint, nodeName + postFix, context, sourceDocument);
 				}
 				else
 				{
@@ -679,23 +1637,82 @@ public class JsonDereferencer
 					}
 					else
 					{
-						LOGGER.warn("Reached a non object in JSON Point reference " + context + fragment );
+						LOGGER.warn("Reached a non object in JSON Point reference {}{}", context, fragment);
 						addPoint.set(nodeName + postFix, current);
+						addLocalizedNode(addPoint, nodeName + postFix, context, sourceDocument);
 						break;
 					}
 				}
 			}
+			isInRoot(localPath);
 		}
 		return fragment + postFix;
 	}
+
+	/**
+	 * Remember a fragment localized into the root document, to be walked once the walk is done.
+	 * Relative references in the fragment are resolved against the location of its document.
+	 */
+	private void addLocalizedNode( final ObjectNode parent, final String name, final URL context, final JsonNode sourceDocument )
+	{
+		if( parent.get(name).isContainerNode() )
+		{
+			final URL location = this.dependencies.getUrl(sourceDocument);
+			this.localizedNodes.add(new LocalizedNode(parent, name, location == null ? context : location));
+		}
+	}
+
+	/**
+	 * Check whether a path exists in the root document.  Paths that were found are remembered and
+	 * not looked up again, since localization only ever adds members to the root document.
+	 */
+	private boolean isInRoot( final String path )
+	{
+		if( this.localizedPaths.contains(path) )
+		{
+			return true;
+		}
+		if( this.rootNode.at(pointer(path)).isMissingNode() )
+		{
+			return false;
+		}
+		this.localizedPaths.add(path);
+		return true;
+	}
+
+	/**
+	 * Get the compiled form of a JSON pointer, compiling it only the first time it is used.
+	 */
+	private JsonPointer pointer( final String path )
+	{
+		JsonPointer p = this.pointers.get(path);
+		if( p == null )
+		{
+			p = JsonPointer.compile(path);
+			this.pointers.put(path, p);
+		}
+		return p;
+	}
+
+	private PathSegments pathSegments( final String path )
+	{
+		PathSegments segments = this.paths.get(path);
+		if( segments == null )
+		{
+			segments = new PathSegments(path);
+			this.paths.put(path, segments);
+		}
+		return segments;
+	}
 	
 	private JsonNode addExternalLibTag(final String jsonPath, final JsonNode sourceDocument, final JsonNode refJson) {
     final String documentTag = this.getMavenArtifactId(sourceDocument);
     if( refJson.isObject() && StringUtils.isNotEmpty(documentTag) ) {
-      if( jsonPath.matches("/parameters/.*") || jsonPath.matches("/components/.*") || jsonPath.matches("/definitions/.*") ) {
+      if( EXTERNAL_LIB_PATH.matcher(jsonPath).matches() ) {
         ObjectNode refJsonObject = (ObjectNode)refJson;
         if( ! refJsonObject.has("x-external-lib")) {
-          ObjectNode refJsonObjectCopy = refJsonObject.deepCopy();
+          // tasks of a parallel walk may still rewrite the library, so they keep a private copy
+          ObjectNode refJsonObjectCopy = this.parallelism > 1 ? refJsonObject.deepCopy() : (ObjectNode)copyShared(refJsonObject);
           refJsonObjectCopy.set("x-external-lib", TextNode.valueOf(documentTag));
           return refJsonObjectCopy;
         }
@@ -704,108 +1721,336 @@ public class JsonDereferencer
     return refJson;
 	}
 	
-	
-	private String getDocUrlString( final JsonNode sourceDocument ) {
-    for(Entry<URL, JsonNode> e : this.dependencies.entrySet()){
-      if( e.getValue() == sourceDocument ){
-        return e.getKey().getPath();
-      }
-    }
-    return null;
-	}
-	
 	private String getDocPostFix(final JsonNode sourceDocument){
-	  String docUrlString = getDocUrlString(sourceDocument);
-	  if( docUrlString != null ) {
+	  final DocumentCache.DocumentInfo info = this.dependencies.getInfo(sourceDocument);
+	  if( info == null ) {
+	    return "";
+	  }
+	  if( info.getPostFix() == null ) {
+	    // the file name has no extension, fail the same way as before the postfix was cached
+	    final String docUrlString = info.getUrl().getPath();
 	    return "-" + docUrlString.substring(docUrlString.lastIndexOf('/')+1, docUrlString.lastIndexOf('.'));
 	  }
-	  return "";
+	  return info.getPostFix();
 	}
 	
 	private String getMavenArtifactId(final JsonNode sourceDocument ) {
-	  String docUrlString = getDocUrlString(sourceDocument);
-	  if( docUrlString == null ) {
+	  final DocumentCache.DocumentInfo info = this.dependencies.getInfo(sourceDocument);
+	  if( info == null ) {
 	    return null;
 	  }
-	  String[] components = docUrlString.split("/");
-	  if( components.length > 3){
-	    return components[components.length-3];
-	  }
-	  return null;
+	  return info.getArtifactId();
 	}
-	private boolean isPartialObjectMatch( JsonNode node, ArrayNode nodeList )
+
+	/**
+	 * Key of a resolved fragment: the referenced document (by identity), the JSON pointer and the
+	 * reference flags that were in effect.
+	 */
+	private static final class FragmentKey
 	{
-		for( int i = 0 ; i < nodeList.size() ; i++ )
+		private final JsonNode document;
+		private final String pointer;
+		private final boolean refDeep;
+		private final boolean refLocalize;
+
+		FragmentKey( final JsonNode document, final String pointer, final boolean refDeep, final boolean refLocalize )
+		{
+			this.document = document;
+			this.pointer = pointer;
+			this.refDeep = refDeep;
+			this.refLocalize = refLocalize;
+		}
+
+		@Override
+		public int hashCode()
 		{
-			if( isPartialObjectMatch( node, nodeList.get(i) ) )
+			int h = System.identityHashCode(document);
+			h = 31 * h + pointer.hashCode();
+			h = 31 * h + (refDeep ? 1 : 0);
+			return 31 * h + (refLocalize ? 1 : 0);
+		}
+
+		@Override
+		public boolean equals( final Object o )
+		{
+			if( ! ( o instanceof FragmentKey ) )
 			{
-				return true;
+				return false;
 			}
+			final FragmentKey k = (FragmentKey)o;
+			return document == k.document && refDeep == k.refDeep && refLocalize == k.refLocalize && pointer.equals(k.pointer);
 		}
-		return false;
 	}
-	
-	private boolean isPartialObjectMatch( JsonNode node, JsonNode partialNode )
+
+	/**
+	 * A fragment of an external document after it was dereferenced, with the localizations its
+	 * resolution recorded during a parallel walk.
+	 */
+	private static final class ResolvedFragment
 	{
-		if( node == partialNode )
+		private final JsonNode node;
+		private final List<Localization> localizations;
+
+		ResolvedFragment( final JsonNode node, final List<Localization> localizations )
 		{
-			return true;
+			this.node = node;
+			this.localizations = localizations == null ? Collections.<Localization>emptyList() : localizations;
 		}
-		if( node == null || partialNode == null )
+	}
+
+	/**
+	 * The segments of a localized JSON pointer: the names as written, which become the member names
+	 * in the root document, and a compiled single segment pointer for each to step through the
+	 * source document.
+	 */
+	private static final class PathSegments
+	{
+		private final String[] names;
+		private final JsonPointer[] steps;
+
+		PathSegments( final String path )
 		{
-			return false;
+			this.names = path.substring(1).split("/");
+			this.steps = new JsonPointer[this.names.length];
+			for( int i = 0 ; i < this.names.length ; i++ )
+			{
+				this.steps[i] = JsonPointer.compile("/" + this.names[i]);
+			}
 		}
-		if( node.getNodeType() != partialNode.getNodeType() )
+	}
+
+	/**
+	 * The containers marked as shared, by identity.  The set is split in stripes chosen by the
+	 * identity hash of the node, each with its own lock, so that the tasks of a parallel walk rarely
+	 * wait for each other.
+	 */
+	private static final class SharedNodes
+	{
+		private static final int STRIPES = 32;
+
+		private final Set<JsonNode>[] stripes;
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		SharedNodes()
 		{
-			return false;
+			this.stripes = new Set[STRIPES];
+			for( int i = 0 ; i < STRIPES ; i++ )
+			{
+				this.stripes[i] = Collections.newSetFromMap(new IdentityHashMap<JsonNode,Boolean>());
+			}
 		}
-		if( node.isObject() && partialNode.isObject() )
+
+		void add( final JsonNode node )
 		{
-			return( isPartialObjectMatch( (ObjectNode)node, (ObjectNode)partialNode ) );
+			final Set<JsonNode> stripe = stripe(node);
+			synchronized( stripe )
+			{
+				stripe.add(node);
+			}
 		}
-		if( node.isArray() && partialNode.isArray() )
+
+		boolean contains( final JsonNode node )
 		{
-			return( isPartialObjectMatch( (ArrayNode)node, (ArrayNode)partialNode ) );
+			final Set<JsonNode> stripe = stripe(node);
+			synchronized( stripe )
+			{
+				return stripe.contains(node);
+			}
 		}
-		if( node.isValueNode() && partialNode.isValueNode() )
+
+		void clear()
 		{
-			return(node.equals(partialNode));
+			for( Set<JsonNode> stripe : this.stripes )
+			{
+				synchronized( stripe )
+				{
+					stripe.clear();
+				}
+			}
+		}
+
+		private Set<JsonNode> stripe( final JsonNode node )
+		{
+			final int h = System.identityHashCode(node);
+			return this.stripes[( h ^ ( h >>> 16 ) ) & ( STRIPES - 1 )];
 		}
-		return false;
 	}
-	private boolean isPartialObjectMatch( ObjectNode node, ObjectNode partialNode )
+
+	/**
+	 * A fragment of another document that is to be copied into the root document.
+	 */
+	private static final class Localization
 	{
-		for( Iterator<Map.Entry<String, JsonNode>> i = partialNode.fields() ; i.hasNext() ; )
+		private final URL context;
+		private final JsonNode sourceDocument;
+		private final String jsonPath;
+		private final String postFix;
+
+		Localization( final URL context, final JsonNode sourceDocument, final String jsonPath, final String postFix )
 		{
-			Map.Entry<String,JsonNode> e = i.next();
-			if( ! isPartialObjectMatch(node.get(e.getKey()), e.getValue() ) )
-			{
-				return false;
-			}
+			this.context = context;
+			this.sourceDocument = sourceDocument;
+			this.jsonPath = jsonPath;
+			this.postFix = postFix;
 		}
-		return true;
 	}
-	private boolean isPartialObjectMatch( ArrayNode node, ArrayNode partialNode )
+
+	/**
+	 * A fragment localized into the root document: the member of the root document holding it and
+	 * the location its relative references are resolved against.
+	 */
+	private static final class LocalizedNode
 	{
-		for( int i = 0; i < partialNode.size() ; i++ )
+		private final ObjectNode parent;
+		private final String name;
+		private final URL context;
+
+		LocalizedNode( final ObjectNode parent, final String name, final URL context )
 		{
-			if( ! isPartialObjectMatch(node.get(i), partialNode.get(i) ) )
+			this.parent = parent;
+			this.name = name;
+			this.context = context;
+		}
+	}
+
+	/**
+	 * A fragment that is being resolved, linked to the resolution that referenced it.
+	 */
+	private static final class ResolutionFrame
+	{
+		private final JsonNode document;
+		private final String pointer;
+		private final ResolutionFrame parent;
+		private final int depth;
+
+		ResolutionFrame( final JsonNode document, final String pointer, final ResolutionFrame parent )
+		{
+			this.document = document;
+			this.pointer = pointer;
+			this.parent = parent;
+			this.depth = parent == null ? 1 : parent.depth + 1;
+		}
+	}
+
+	/**
+	 * State of one branch of the walk: the stack of fragments being resolved, the number of nodes
+	 * visited but not yet added to the total, one reusable member buffer per level of object
+	 * nesting and the recorded localizations.  A serial walk
+	 * localizes fragments into the root document immediately; the branches of a parallel walk
+	 * record them in walk order instead.
+	 */
+	private static final class Walk
+	{
+		private final List<Localization> localizations;
+		private ResolutionFrame frame;
+		private int uncountedNodes = 0;
+		private Object[][] members = new Object[16][];
+		private int depth = 0;
+		private boolean inShared = false;
+
+		Walk( final boolean parallel, final ResolutionFrame frame )
+		{
+			this.localizations = parallel ? new ArrayList<Localization>() : null;
+			this.frame = frame;
+		}
+
+		/**
+		 * Get the member buffer for the next level of object nesting, large enough for the keys and
+		 * values of an object with the given number of members.
+		 */
+		Object[] enterObject( final int size )
+		{
+			if( this.depth == this.members.length )
 			{
-				return false;
+				this.members = Arrays.copyOf(this.members, this.depth * 2);
+			}
+			Object[] buffer = this.members[this.depth];
+			if( buffer == null || buffer.length < size * 2 )
+			{
+				buffer = new Object[Math.max(size * 2, 16)];
+				this.members[this.depth] = buffer;
+			}
+			this.depth++;
+			return buffer;
+		}
+
+		/**
+		 * Release the member buffer of the current level, clearing the used slots so the buffer
+		 * does not keep nodes alive.
+		 */
+		void exitObject( final int used )
+		{
+			this.depth--;
+			Arrays.fill(this.members[this.depth], 0, used, null);
+		}
+
+		boolean isParallel()
+		{
+			return this.localizations != null;
+		}
+
+		void addAll( final List<Localization> l )
+		{
+			if( this.localizations != null )
+			{
+				this.localizations.addAll(l);
 			}
 		}
-		return true;
 	}
-	private boolean targetContainsNode( ArrayNode targetArray, JsonNode node )
+
+	/**
+	 * Dereferences one node of the root document as part of a parallel walk.
+	 */
+	private final class SubtreeTask
+		extends RecursiveAction
 	{
-		for( Iterator<JsonNode> i = targetArray.elements() ; i.hasNext() ; )
+		private static final long serialVersionUID = 1L;
+
+		private final JsonNode node;
+		private final URL context;
+		private final JsonNode currentDocument;
+		private final Walk walk;
+		private JsonNode result;
+		private Exception failure;
+
+		SubtreeTask( final JsonNode node, final URL context, final JsonNode currentDocument, final ResolutionFrame frame )
+		{
+			this.node = node;
+			this.context = context;
+			this.currentDocument = currentDocument;
+			this.walk = new Walk(true, frame);
+		}
+
+		@Override
+		protected void compute()
 		{
-			JsonNode n = i.next();
-			if( n.equals(node) )
+			try
 			{
-				return true;
+				this.result = dereference(this.node, this.context, this.currentDocument, this.walk);
+				countNodes(this.walk);
+			}
+			catch( Exception e )
+			{
+				this.failure = e;
 			}
 		}
-		return false;
+
+		JsonNode getResult()
+			throws IOException, URISyntaxException
+		{
+			if( this.failure instanceof IOException )
+			{
+				throw (IOException)this.failure;
+			}
+			if( this.failure instanceof URISyntaxException )
+			{
+				throw (URISyntaxException)this.failure;
+			}
+			if( this.failure instanceof RuntimeException )
+			{
+				throw (RuntimeException)this.failure;
+			}
+			return this.result;
+		}
 	}
 }
@@ -0,0 +1,291 @@
+package com.trusolve.json;
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * The members of an object of a lazily parsed document.  The map is handed to the
+ * {@link com.fasterxml.jackson.databind.node.ObjectNode} constructor, so the node behaves like any
+ * other object node while its container members are only parsed from the document text when they
+ * are first read.  Looking up a single member (and so {@link JsonNode#at(String)}) parses only
+ * that member, and iterating the members parses each one as its value is read; the names are
+ * known without parsing anything.  Member order is the order of the document either way.
+ */
+class LazyMembers
+	extends AbstractMap<String,JsonNode>
+{
+	private final DocumentReader.Source source;
+	// values are JsonNode once parsed, long[] { start, end } byte offsets of the text before
+	private final Map<String,Object> members = new LinkedHashMap<String,Object>();
+
+	LazyMembers( final DocumentReader.Source source )
+	{
+		this.source = source;
+	}
+
+	/**
+	 * Add a member whose text has not been parsed.
+	 */
+	synchronized void putUnparsed( final String name, final long start, final long end )
+	{
+		members.put(name, new long[] { start, end });
+	}
+
+	@Override
+	public synchronized JsonNode get( final Object key )
+	{
+		final Object value = members.get(key);
+		if( value instanceof long[] )
+		{
+			final JsonNode node = parse((long[])value);
+			members.put((String)key, node);
+			return node;
+		}
+		return (JsonNode)value;
+	}
+
+	@Override
+	public synchronized boolean containsKey( final Object key )
+	{
+		return members.containsKey(key);
+	}
+
+	@Override
+	public synchronized int size()
+	{
+		return members.size();
+	}
+
+	/**
+	 * The previous value is returned only if it was parsed; the text of an unparsed member is not
+	 * parsed just to be replaced, null is returned instead.
+	 */
+	@Override
+	public synchronized JsonNode put( final String key, final JsonNode value )
+	{
+		return parsedOrNull(members.put(key, value));
+	}
+
+	/**
+	 * As {@link #put(String, JsonNode)}, null is returned for an unparsed member.
+	 */
+	@Override
+	public synchronized JsonNode remove( final Object key )
+	{
+		return parsedOrNull(members.remove(key));
+	}
+
+	@Override
+	public synchronized void clear()
+	{
+		members.clear();
+	}
+
+	/**
+	 * The names are known without parsing the members.  Removing through the set or its iterator
+	 * removes the members.
+	 */
+	@Override
+	public Set<String> keySet()
+	{
+		return new AbstractSet<String>()
+		{
+			@Override
+			public Iterator<String> iterator()
+			{
+				final Iterator<Map.Entry<String,JsonNode>> i = entrySet().iterator();
+				return new Iterator<String>()
+				{
+					@Override
+					public boolean hasNext()
+					{
+						return i.hasNext();
+					}
+
+					@Override
+					public String next()
+					{
+						return i.next().getKey();
+					}
+
+					@Override
+					public void remove()
+					{
+						i.remove();
+					}
+				};
+			}
+
+			@Override
+			public int size()
+			{
+				return LazyMembers.this.size();
+			}
+
+			@Override
+			public boolean contains( final Object o )
+			{
+				return containsKey(o);
+			}
+
+			@Override
+			public boolean remove( final Object o )
+			{
+				synchronized( LazyMembers.this )
+				{
+					if( ! members.containsKey(o) )
+					{
+						return false;
+					}
+					LazyMembers.this.remove(o);
+					return true;
+				}
+			}
+		};
+	}
+
+	/**
+	 * Members are parsed as the values of their entries are read, so going through the names alone
+	 * parses nothing.
+	 */
+	@Override
+	public Set<Map.Entry<String,JsonNode>> entrySet()
+	{
+		return new AbstractSet<Map.Entry<String,JsonNode>>()
+		{
+			@Override
+			public Iterator<Map.Entry<String,JsonNode>> iterator()
+			{
+				final Iterator<Map.Entry<String,Object>> i;
+				synchronized( LazyMembers.this )
+				{
+					i = members.entrySet().iterator();
+				}
+				return new Iterator<Map.Entry<String,JsonNode>>()
+				{
+						@Override
+					public boolean hasNext()
+					{
+						return i.hasNext();
+					}
+
+					@Override
+					public Map.Entry<String,JsonNode> next()
+					{
+						return new Member(i.next());
+					}
+
+					@Override
+					public void remove()
+					{
+						synchronized( LazyMembers.this )
+						{
+							i.remove();
+						}
+					}
+				};
+			}
+
+			@Override
+			public int size()
+			{
+				return LazyMembers.this.size();
+			}
+		};
+	}
+
+	/**
+	 * An entry of the members, parsing its value when it is read.
+	 */
+	private class Member
+		implements Map.Entry<String,JsonNode>
+	{
+		private final Map.Entry<String,Object> entry;
+
+		Member( final Map.Entry<String,Object> entry )
+		{
+			this.entry = entry;
+		}
+
+		@Override
+		public String getKey()
+		{
+			return entry.getKey();
+		}
+
+		@Override
+		public JsonNode getValue()
+		{
+			synchronized( LazyMembers.this )
+			{
+				final Object value = entry.getValue();
+				if( value instanceof long[] )
+				{
+					final JsonNode node = parse((long[])value);
+					entry.setValue(node);
+					return node;
+				}
+				return (JsonNode)value;
+			}
+		}
+
+		@Override
+		public JsonNode setValue( final JsonNode value )
+		{
+			synchronized( LazyMembers.this )
+			{
+				return parsedOrNull(entry.setValue(value));
+			}
+		}
+
+		@Override
+		public boolean equals( final Object o )
+		{
+			if( ! ( o instanceof Map.Entry ) )
+			{
+				return false;
+			}
+			final Map.Entry<?,?> e = (Map.Entry<?,?>)o;
+			final JsonNode value = getValue();
+			return getKey().equals(e.getKey()) && ( value == null ? e.getValue() == null : value.equals(e.getValue()) );
+		}
+
+		@Override
+		public int hashCode()
+		{
+			final JsonNode value = getValue();
+			return getKey().hashCode() ^ ( value == null ? 0 : value.hashCode() );
+		}
+
+		@Override
+		public String toString()
+		{
+			return getKey() + "=" + getValue();
+		}
+	}
+
+	private static JsonNode parsedOrNull( final Object previous )
+	{
+		return previous instanceof long[] ? null : (JsonNode)previous;
+	}
+
+	private JsonNode parse( final long[] range )
+	{
+		try
+		{
+			return source.parse(range[0], range[1]);
+		}
+		catch( IOException e )
+		{
+			// the text was scanned successfully before, so this only happens if the source is broken
+			throw new IllegalStateException("Unable to parse lazily loaded member of " + source, e);
+		}
+	}
+}
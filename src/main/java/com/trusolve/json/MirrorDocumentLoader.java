@@ -0,0 +1,107 @@
+package com.trusolve.json;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URL;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves remote documents from a local copy, standing in for their server so that specifications
+ * referencing remote libraries can be dereferenced, tested and benchmarked offline.  A document
+ * whose location starts with the prefix is read from the same relative path in the directory;
+ * {@code https://api.example.com/lib/} mirrored by the directory {@code mirror} serves
+ * {@code https://api.example.com/lib/common.json} from {@code mirror/common.json}.
+ * <p>
+ * The mirror answers like an HTTP server would: documents carry an ETag and a Last-Modified
+ * value derived from the size and modification time of the file, and a cached copy whose
+ * validators still match is returned as if the server had answered "304 Not Modified".  The
+ * counters tell how many documents were read and how many were revalidated.
+ */
+public class MirrorDocumentLoader
+	implements DocumentLoader
+{
+	private final String prefix;
+	private final File directory;
+	private DocumentLoader fallback = null;
+	private final AtomicInteger reads = new AtomicInteger();
+	private final AtomicInteger notModified = new AtomicInteger();
+
+	/**
+	 * @param prefix
+	 *          The start of the locations served from the directory, normally ending with "/".
+	 * @param directory
+	 *          The directory holding the documents.
+	 */
+	public MirrorDocumentLoader( final String prefix, final File directory )
+	{
+		this.prefix = prefix;
+		this.directory = directory;
+	}
+
+	/**
+	 * Set the loader of the documents outside of the prefix.  Without one they fail to load, so a
+	 * test cannot reach the network by accident.
+	 */
+	public void setFallback( DocumentLoader fallback )
+	{
+		this.fallback = fallback;
+	}
+
+	@Override
+	public Document load( final URL url, final Document cached )
+		throws IOException
+	{
+		final String location = url.toExternalForm();
+		if( ! location.startsWith(this.prefix) )
+		{
+			if( this.fallback == null )
+			{
+				throw new FileNotFoundException(url + " is outside of the mirror of " + this.prefix);
+			}
+			return this.fallback.load(url, cached);
+		}
+		final File file = new File(this.directory, location.substring(this.prefix.length()));
+		if( ! file.isFile() )
+		{
+			throw new FileNotFoundException(url + " is not mirrored in " + file);
+		}
+		final String etag = "\"" + Long.toHexString(file.length()) + "-" + Long.toHexString(file.lastModified()) + "\"";
+		final String lastModified = formatDate(file.lastModified());
+		if( cached != null && ( etag.equals(cached.getEtag()) || ( cached.getEtag() == null && lastModified.equals(cached.getLastModified()) ) ) )
+		{
+			this.notModified.incrementAndGet();
+			return cached;
+		}
+		this.reads.incrementAndGet();
+		final Document document = DocumentReader.load(file.toURI().toURL());
+		return new Document(document.getContent(), etag, lastModified, document.getBytes());
+	}
+
+	/**
+	 * @return The number of documents read from the mirror.
+	 */
+	public int getReads()
+	{
+		return this.reads.get();
+	}
+
+	/**
+	 * @return The number of cached copies found to be current.
+	 */
+	public int getNotModified()
+	{
+		return this.notModified.get();
+	}
+
+	private static String formatDate( final long time )
+	{
+		final SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		return format.format(new Date(time));
+	}
+}
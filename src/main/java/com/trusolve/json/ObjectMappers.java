@@ -0,0 +1,87 @@
+package com.trusolve.json;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+
+/**
+ * Shared, pre-configured Jackson mappers and writers.  Building an ObjectMapper and warming up its
+ * serializer caches costs more than processing a small document, so every class uses these
+ * instances instead of creating its own.  The mappers themselves are only available to this
+ * package, which never reconfigures them; other code gets readers and writers, which cannot be
+ * reconfigured.  Code that needs different features must create its own mapper.
+ */
+public final class ObjectMappers
+{
+	private static final ObjectMapper JSON = new ObjectMapper();
+	private static final ObjectMapper YAML = new ObjectMapper(new YAMLFactory());
+	private static final ObjectMapper SMILE = new ObjectMapper(new SmileFactory());
+	private static final ObjectWriter PRETTY_WRITER = JSON.writer(SerializationFeature.INDENT_OUTPUT).withDefaultPrettyPrinter();
+	private static final ObjectWriter COMPACT_WRITER = JSON.writer();
+	private static final ObjectReader JSON_READER = JSON.readerFor(JsonNode.class);
+	private static final ObjectWriter YAML_WRITER = YAML.writer();
+
+	private ObjectMappers()
+	{
+	}
+
+	/**
+	 * @return Mapper reading and writing JSON with the default features.
+	 */
+	static ObjectMapper json()
+	{
+		return JSON;
+	}
+
+	/**
+	 * @return Mapper reading and writing YAML with the default features.
+	 */
+	static ObjectMapper yaml()
+	{
+		return YAML;
+	}
+
+	/**
+	 * @return Mapper reading and writing the binary Smile format.
+	 */
+	static ObjectMapper smile()
+	{
+		return SMILE;
+	}
+
+	/**
+	 * @return Reader of JSON documents as trees.
+	 */
+	public static ObjectReader jsonReader()
+	{
+		return JSON_READER;
+	}
+
+	/**
+	 * @return Writer producing YAML with the default features.
+	 */
+	public static ObjectWriter yamlWriter()
+	{
+		return YAML_WRITER;
+	}
+
+	/**
+	 * @return Writer producing indented JSON with the default pretty printer.
+	 */
+	public static ObjectWriter prettyWriter()
+	{
+		return PRETTY_WRITER;
+	}
+
+	/**
+	 * @return Writer producing JSON without any whitespace.
+	 */
+	public static ObjectWriter compactWriter()
+	{
+		return COMPACT_WRITER;
+	}
+}
@@ -0,0 +1,235 @@
+package com.trusolve.json;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeType;
+
+/**
+ * The patterns of a $refArrayRemovePartialMatch directive, compiled once per array merge.  A node
+ * matches a pattern when every member of the pattern is present in the node with a matching value
+ * (recursively for objects and arrays, by equality for values).  Object patterns are indexed by
+ * their first value member, so a node is only compared with the patterns that can match it
+ * instead of with every pattern.
+ */
+class PartialMatchIndex
+{
+	private final Map<String,Map<JsonNode,List<Pattern>>> indexed = new LinkedHashMap<String,Map<JsonNode,List<Pattern>>>();
+	private final List<Pattern> unindexed = new ArrayList<Pattern>();
+
+	/**
+	 * @param patterns
+	 *          The partial nodes a node is matched against.
+	 */
+	PartialMatchIndex( final ArrayNode patterns )
+	{
+		for( JsonNode p : patterns )
+		{
+			final Pattern pattern = compile(p);
+			if( pattern instanceof ObjectPattern && ((ObjectPattern)pattern).indexField != null )
+			{
+				final ObjectPattern op = (ObjectPattern)pattern;
+				Map<JsonNode,List<Pattern>> byValue = indexed.get(op.indexField);
+				if( byValue == null )
+				{
+					byValue = new HashMap<JsonNode,List<Pattern>>();
+					indexed.put(op.indexField, byValue);
+				}
+				List<Pattern> l = byValue.get(op.indexValue);
+				if( l == null )
+				{
+					l = new ArrayList<Pattern>(1);
+					byValue.put(op.indexValue, l);
+				}
+				l.add(pattern);
+			}
+			else
+			{
+				unindexed.add(pattern);
+			}
+		}
+	}
+
+	/**
+	 * Check whether a node matches any of the patterns.
+	 */
+	boolean matches( final JsonNode node )
+	{
+		if( node != null && node.isObject() )
+		{
+			for( Map.Entry<String,Map<JsonNode,List<Pattern>>> e : indexed.entrySet() )
+			{
+				final JsonNode value = node.get(e.getKey());
+				if( value == null )
+				{
+					continue;
+				}
+				final List<Pattern> candidates = e.getValue().get(value);
+				if( candidates != null && matchesAny(candidates, node) )
+				{
+					return true;
+				}
+			}
+		}
+		return matchesAny(unindexed, node);
+	}
+
+	private static boolean matchesAny( final List<Pattern> patterns, final JsonNode node )
+	{
+		for( int i = 0 ; i < patterns.size() ; i++ )
+		{
+			if( patterns.get(i).matches(node) )
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static Pattern compile( final JsonNode partial )
+	{
+		if( partial.isObject() )
+		{
+			return new ObjectPattern(partial);
+		}
+		if( partial.isArray() )
+		{
+			return new ArrayPattern(partial);
+		}
+		if( partial.isValueNode() )
+		{
+			return new ValuePattern(partial);
+		}
+		return new IdentityPattern(partial);
+	}
+
+	private static abstract class Pattern
+	{
+		abstract boolean matches( JsonNode node );
+	}
+
+	private static final class ValuePattern
+		extends Pattern
+	{
+		private final JsonNode value;
+		private final JsonNodeType type;
+
+		ValuePattern( final JsonNode value )
+		{
+			this.value = value;
+			this.type = value.getNodeType();
+		}
+
+		@Override
+		boolean matches( final JsonNode node )
+		{
+			return node != null && node.getNodeType() == type && node.equals(value);
+		}
+	}
+
+	private static final class ObjectPattern
+		extends Pattern
+	{
+		private final String[] fields;
+		private final Pattern[] values;
+		private final String indexField;
+		private final JsonNode indexValue;
+
+		ObjectPattern( final JsonNode partial )
+		{
+			fields = new String[partial.size()];
+			values = new Pattern[partial.size()];
+			String field = null;
+			JsonNode value = null;
+			int n = 0;
+			for( Iterator<Map.Entry<String,JsonNode>> i = partial.fields() ; i.hasNext() ; n++ )
+			{
+				final Map.Entry<String,JsonNode> e = i.next();
+				fields[n] = e.getKey();
+				values[n] = compile(e.getValue());
+				if( field == null && values[n] instanceof ValuePattern )
+				{
+					field = e.getKey();
+					value = e.getValue();
+				}
+			}
+			indexField = field;
+			indexValue = value;
+		}
+
+		@Override
+		boolean matches( final JsonNode node )
+		{
+			if( node == null || ! node.isObject() )
+			{
+				return false;
+			}
+			for( int i = 0 ; i < fields.length ; i++ )
+			{
+				if( ! values[i].matches(node.get(fields[i])) )
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	private static final class ArrayPattern
+		extends Pattern
+	{
+		private final Pattern[] elements;
+
+		ArrayPattern( final JsonNode partial )
+		{
+			elements = new Pattern[partial.size()];
+			for( int i = 0 ; i < elements.length ; i++ )
+			{
+				elements[i] = compile(partial.get(i));
+			}
+		}
+
+		@Override
+		boolean matches( final JsonNode node )
+		{
+			if( node == null || ! node.isArray() )
+			{
+				return false;
+			}
+			for( int i = 0 ; i < elements.length ; i++ )
+			{
+				if( ! elements[i].matches(node.get(i)) )
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Nodes that are neither containers nor values only match themselves.
+	 */
+	private static final class IdentityPattern
+		extends Pattern
+	{
+		private final JsonNode partial;
+
+		IdentityPattern( final JsonNode partial )
+		{
+			this.partial = partial;
+		}
+
+		@Override
+		boolean matches( final JsonNode node )
+		{
+			return node == partial;
+		}
+	}
+}
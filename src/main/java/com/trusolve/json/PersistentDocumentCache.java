@@ -0,0 +1,191 @@
+package com.trusolve.json;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Directory of parsed documents stored in the binary Smile format so that later builds can skip
+ * parsing the JSON text of dependencies that have not changed.  An entry of a "file:" document is
+ * used only while the size and modification time of the source file still match the values
+ * recorded with it.  Remote documents are stored with the validators their server sent (see
+ * {@link DocumentLoader.Document}) and are revalidated by the {@link DocumentLoader} before use.
+ * The cache is best effort: any problem reading or writing an entry is logged and the document is
+ * parsed from its source instead.
+ */
+class PersistentDocumentCache
+{
+	private static final Logger LOGGER = LoggerFactory.getLogger(PersistentDocumentCache.class);
+	private static final String ENTRY_SUFFIX = ".smile";
+
+	private final File directory;
+
+	PersistentDocumentCache( final File directory )
+	{
+		this.directory = directory;
+	}
+
+	/**
+	 * Get the cached copy of a document.
+	 *
+	 * @param url
+	 *          The location of the document.
+	 * @return The parsed document or null if there is no valid entry for the current source.
+	 */
+	JsonNode get( final URL url )
+	{
+		final File source = DocumentReader.toFile(url);
+		if( source == null || ! source.isFile() )
+		{
+			return null;
+		}
+		final File entry = getEntryFile(url);
+		if( ! entry.isFile() )
+		{
+			return null;
+		}
+		try
+		{
+			final JsonNode cached = ObjectMappers.smile().readTree(entry);
+			if( cached.path("length").asLong(-1) != source.length() || cached.path("lastModified").asLong(-1) != source.lastModified() )
+			{
+				LOGGER.debug("Cached copy of {} is out of date.", url);
+				return null;
+			}
+			final JsonNode document = cached.get("document");
+			LOGGER.debug("Loaded {} from the persistent cache.", url);
+			return document;
+		}
+		catch( Exception e )
+		{
+			LOGGER.warn("Unable to read persistent cache entry {}", entry, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Store a parsed document.
+	 *
+	 * @param url
+	 *          The location the document was loaded from.
+	 * @param document
+	 *          The parsed document.
+	 */
+	void put( final URL url, final JsonNode document )
+	{
+		final File source = DocumentReader.toFile(url);
+		if( source == null || ! source.isFile() )
+		{
+			return;
+		}
+		final ObjectNode cached = JsonNodeFactory.instance.objectNode();
+		cached.put("source", url.toExternalForm());
+		cached.put("length", source.length());
+		cached.put("lastModified", source.lastModified());
+		cached.set("document", document);
+		write(url, cached);
+	}
+
+	/**
+	 * Get the stored copy of a remote document.
+	 *
+	 * @param url
+	 *          The location of the document.
+	 * @return The document with its validators, or null if there is no entry.  The document may be
+	 *         out of date and must be revalidated.
+	 */
+	DocumentLoader.Document getRemote( final URL url )
+	{
+		final File entry = getEntryFile(url);
+		if( ! entry.isFile() )
+		{
+			return null;
+		}
+		try
+		{
+			final JsonNode cached = ObjectMappers.smile().readTree(entry);
+			final DocumentLoader.Document document = new DocumentLoader.Document(cached.get("document"), cached.path("etag").asText(null), cached.path("httpLastModified").asText(null));
+			if( document.getContent() == null || ! document.isValidatable() )
+			{
+				return null;
+			}
+			return document;
+		}
+		catch( Exception e )
+		{
+			LOGGER.warn("Unable to read persistent cache entry {}", entry, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Store a remote document with its validators.  Documents without validators cannot be
+	 * revalidated and are not stored.
+	 */
+	void putRemote( final URL url, final DocumentLoader.Document document )
+	{
+		if( ! document.isValidatable() )
+		{
+			return;
+		}
+		final ObjectNode cached = JsonNodeFactory.instance.objectNode();
+		cached.put("source", url.toExternalForm());
+		if( document.getEtag() != null )
+		{
+			cached.put("etag", document.getEtag());
+		}
+		if( document.getLastModified() != null )
+		{
+			cached.put("httpLastModified", document.getLastModified());
+		}
+		cached.set("document", document.getContent());
+		write(url, cached);
+	}
+
+	private void write( final URL url, final ObjectNode cached )
+	{
+		final File entry = getEntryFile(url);
+		File temp = null;
+		try
+		{
+			if( ! directory.isDirectory() && ! directory.mkdirs() && ! directory.isDirectory() )
+			{
+				throw new IOException("Unable to create cache directory " + directory);
+			}
+			temp = File.createTempFile("entry", ".tmp", directory);
+			ObjectMappers.smile().writeValue(temp, cached);
+			try
+			{
+				Files.move(temp.toPath(), entry.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			}
+			catch( AtomicMoveNotSupportedException e )
+			{
+				Files.move(temp.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		catch( Exception e )
+		{
+			LOGGER.warn("Unable to write persistent cache entry for {}", url, e);
+			if( temp != null )
+			{
+				temp.delete();
+			}
+		}
+	}
+
+	private File getEntryFile( final URL url )
+	{
+		return new File(directory, DigestUtils.sha256Hex(DocumentCache.key(url)) + ENTRY_SUFFIX);
+	}
+}
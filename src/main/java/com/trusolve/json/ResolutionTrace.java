@@ -0,0 +1,220 @@
+package com.trusolve.json;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Bounded record of the reference resolution steps of a {@link JsonDereferencer}.  Only the
+ * locations, pointers and references involved are kept, never the JSON subtrees, and the slots of
+ * the ring buffer are allocated up front, so tracing costs little more than the array stores.
+ * Once the buffer is full the oldest events are overwritten.
+ */
+public class ResolutionTrace
+{
+	public static final int DEFAULT_CAPACITY = 10000;
+
+	/**
+	 * The kinds of recorded events.
+	 */
+	public enum Kind
+	{
+		/** A $ref was found; the detail is the reference as written. */
+		REFERENCE,
+		/** A referenced document was loaded and parsed. */
+		DOCUMENT_LOADED,
+		/** A fragment of an external document was dereferenced. */
+		FRAGMENT_RESOLVED,
+		/** A fragment was taken from the resolved fragment cache. */
+		FRAGMENT_CACHED,
+		/** A fragment was copied into the root document; the detail is the local reference. */
+		LOCALIZED,
+		/** A referenced object was merged into the referencing object; the detail is "deep" or "shallow". */
+		MERGED
+	}
+
+	/**
+	 * One recorded event.
+	 */
+	public static final class Event
+	{
+		private final long timeNanos;
+		private final Kind kind;
+		private final URL location;
+		private final String pointer;
+		private final String detail;
+
+		Event( final long timeNanos, final Kind kind, final URL location, final String pointer, final String detail )
+		{
+			this.timeNanos = timeNanos;
+			this.kind = kind;
+			this.location = location;
+			this.pointer = pointer;
+			this.detail = detail;
+		}
+
+		/**
+		 * @return The value of {@link System#nanoTime()} when the event was recorded.
+		 */
+		public long getTimeNanos()
+		{
+			return timeNanos;
+		}
+
+		public Kind getKind()
+		{
+			return kind;
+		}
+
+		/**
+		 * @return The document the event relates to, may be null for the root document.
+		 */
+		public URL getLocation()
+		{
+			return location;
+		}
+
+		/**
+		 * @return The JSON pointer the event relates to, may be null.
+		 */
+		public String getPointer()
+		{
+			return pointer;
+		}
+
+		public String getDetail()
+		{
+			return detail;
+		}
+
+		@Override
+		public String toString()
+		{
+			return kind + " " + location + "#" + ( pointer == null ? "" : pointer ) + ( detail == null ? "" : " " + detail );
+		}
+	}
+
+	private final long[] times;
+	private final Kind[] kinds;
+	private final URL[] locations;
+	private final String[] pointers;
+	private final String[] details;
+	private long recorded = 0;
+
+	public ResolutionTrace()
+	{
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param capacity
+	 *          Number of events kept.
+	 */
+	public ResolutionTrace( final int capacity )
+	{
+		if( capacity < 1 )
+		{
+			throw new IllegalArgumentException("Trace capacity must be positive, found " + capacity);
+		}
+		this.times = new long[capacity];
+		this.kinds = new Kind[capacity];
+		this.locations = new URL[capacity];
+		this.pointers = new String[capacity];
+		this.details = new String[capacity];
+	}
+
+	synchronized void record( final Kind kind, final URL location, final String pointer, final String detail )
+	{
+		final int slot = (int)( recorded % times.length );
+		times[slot] = System.nanoTime();
+		kinds[slot] = kind;
+		locations[slot] = location;
+		pointers[slot] = pointer;
+		details[slot] = detail;
+		recorded++;
+	}
+
+	/**
+	 * @return Number of events recorded, including the ones that were overwritten.
+	 */
+	public synchronized long getRecordedCount()
+	{
+		return recorded;
+	}
+
+	/**
+	 * @return Number of events that were overwritten because the buffer was full.
+	 */
+	public synchronized long getDroppedCount()
+	{
+		return Math.max(0, recorded - times.length);
+	}
+
+	/**
+	 * @return The events still in the buffer, oldest first.
+	 */
+	public synchronized List<Event> getEvents()
+	{
+		final int size = (int)Math.min(recorded, times.length);
+		final List<Event> events = new ArrayList<Event>(size);
+		for( long i = recorded - size ; i < recorded ; i++ )
+		{
+			final int slot = (int)( i % times.length );
+			events.add(new Event(times[slot], kinds[slot], locations[slot], pointers[slot], details[slot]));
+		}
+		return events;
+	}
+
+	public synchronized void clear()
+	{
+		recorded = 0;
+		Arrays.fill(kinds, null);
+		Arrays.fill(locations, null);
+		Arrays.fill(pointers, null);
+		Arrays.fill(details, null);
+	}
+
+	/**
+	 * Write the buffered events as a JSON object.  Event times are given in microseconds relative
+	 * to the oldest buffered event.
+	 */
+	public ObjectNode toJson()
+	{
+		final List<Event> events;
+		final long recordedCount;
+		synchronized( this )
+		{
+			events = getEvents();
+			recordedCount = recorded;
+		}
+		final ObjectNode json = JsonNodeFactory.instance.objectNode();
+		json.put("recorded", recordedCount);
+		json.put("dropped", Math.max(0, recordedCount - times.length));
+		final ArrayNode a = json.putArray("events");
+		final long start = events.isEmpty() ? 0 : events.get(0).timeNanos;
+		for( Event e : events )
+		{
+			final ObjectNode o = a.addObject();
+			o.put("timeMicros", ( e.timeNanos - start ) / 1000L);
+			o.put("kind", e.kind.name());
+			if( e.location != null )
+			{
+				o.put("location", e.location.toExternalForm());
+			}
+			if( e.pointer != null )
+			{
+				o.put("pointer", e.pointer);
+			}
+			if( e.detail != null )
+			{
+				o.put("detail", e.detail);
+			}
+		}
+		return json;
+	}
+}
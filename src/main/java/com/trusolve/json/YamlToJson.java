@@ -8,12 +8,7 @@ import java.net.URI;
 import java.net.URL;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.core.PrettyPrinter;
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.ObjectWriter;
-import com.fasterxml.jackson.databind.SerializationFeature;
-import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
 
 public class YamlToJson
 {
@@ -31,8 +26,7 @@ public class YamlToJson
 			{
 				source = new File(args[0]).toURI().toURL();
 			}
-			ObjectMapper mapper = new ObjectMapper(new YAMLFactory());
-			JsonNode jn = mapper.readTree(source);
+			JsonNode jn = ObjectMappers.yaml().readTree(source);
 			System.out.println(jn.toString());
 		}
 		catch(Exception e)
@@ -46,18 +40,13 @@ public class YamlToJson
 	{
 		JsonNode jn = convert(r);
 
-		ObjectMapper om = new ObjectMapper();
-		
-		om.enable(SerializationFeature.INDENT_OUTPUT);
-		ObjectWriter ow = om.writer().withDefaultPrettyPrinter();
-		return ow.writeValueAsString(jn);
+		return ObjectMappers.prettyWriter().writeValueAsString(jn);
 	}
 	
 	public JsonNode convert(Reader r)
 		throws JsonProcessingException, IOException
 	{
-		ObjectMapper mapper = new ObjectMapper(new YAMLFactory());
-		JsonNode jn = mapper.readTree(r);
+		JsonNode jn = ObjectMappers.yaml().readTree(r);
 		return(jn);
 	}
 }